@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The files of one STORE_BATCH or REMOVE_BATCH, or the chunks of one chunked file. Each file is settled once, with
+ * the token a single STORE or REMOVE would have replied with, or ERROR_INCOMPLETE if its operation timed out or lost
+ * a Dstore. Once every file has settled and the Controller has called ready, the client gets one reply with every
+ * file's outcome.
+ */
+public class Batch {
+    private final List<String> filenames;
+    private final AtomicReferenceArray<String> outcomes;
+    private final AtomicInteger unsettled; //files without an outcome, plus one until ready is called
+    private final Consumer<List<String>> done; //given every outcome in order, from the thread that settles the last
+
+    /**
+     * A batch that replies to client with token. The reply is written on a virtual thread of its own: the last file
+     * may be settled by the timer thread, holding the file's lock, which must not wait on a client that has stopped
+     * reading.
+     */
+    public Batch(String token, ClientWriter client, List<String> filenames){
+        this(filenames, results -> Thread.ofVirtual().name("batch-complete").start(() -> client.batchComplete(token, filenames, results)));
+    }
+
+    /**
+     * A batch whose outcomes go to done rather than to a client, such as the chunks of one chunked file.
+     */
+    public Batch(List<String> filenames, Consumer<List<String>> done){
+        this.filenames = filenames;
+        this.outcomes = new AtomicReferenceArray<>(filenames.size());
+        this.unsettled = new AtomicInteger(filenames.size() + 1);
+        this.done = done;
+    }
+
+    /**
+     * Records the outcome of the file at index, unless it already has one.
+     */
+    public void settle(int index, String outcome){
+        if (outcomes.compareAndSet(index, null, outcome)) {
+            release();
+        }
+    }
+
+    /**
+     * Called once every file has been started and any STORE_BATCH_TO sent, so the completion cannot overtake it.
+     */
+    public void ready(){
+        release();
+    }
+
+    private void release(){
+        if (unsettled.decrementAndGet() == 0) {
+            List<String> results = new ArrayList<>(filenames.size());
+            for (int i = 0; i < filenames.size(); i++) {
+                results.add(outcomes.get(i));
+            }
+            done.accept(results);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Opcodes for the binary framing a client can use with the Controller instead of the text protocol. A client opts in
+ * by sending MAGIC as the first byte of its connection; text messages always start with a letter, so the Controller
+ * can tell the two apart. From then on every message either way is a Frame: its length as a varint, then the opcode,
+ * then its fields in the order the text message has them. Numbers are varints and strings are a varint byte count
+ * followed by UTF-8.
+ */
+
+public class BinaryProtocol {
+
+	public final static int MAGIC = 0xB7;
+
+	// messages sent by Clients
+	public final static int LIST = 1;
+	public final static int STORE = 2; // filename filesize [hash]
+	public final static int LOAD = 3; // filename
+	public final static int RELOAD = 4; // filename
+	public final static int REMOVE = 5; // filename
+	public final static int LIST_PAGE = 6; // prefix after limit, with "" for no prefix or cursor and 0 for the default limit
+	public final static int STORE_BATCH = 7; // count (filename filesize)...
+	public final static int LOAD_BATCH = 8; // count filename...
+	public final static int REMOVE_BATCH = 9; // count filename...
+	public final static int STORE_EC = 10; // filename filesize dataShards parityShards
+
+	// messages sent by the Controller
+	public final static int STORE_TO = 16; // port...
+	public final static int STORE_COMPLETE = 17;
+	public final static int LOAD_FROM = 18; // port filesize
+	public final static int REMOVE_COMPLETE = 19;
+	public final static int LIST_REPLY = 20; // filename..., the last part of a LIST reply
+	public final static int LIST_PART = 21; // filename..., more LIST_PART or LIST_REPLY frames follow
+	public final static int LIST_PAGE_REPLY = 22; // more filename..., with more 1 or 0
+	public final static int ERROR_FILE_DOES_NOT_EXIST = 23;
+	public final static int ERROR_FILE_ALREADY_EXISTS = 24;
+	public final static int ERROR_NOT_ENOUGH_DSTORES = 25;
+	public final static int ERROR_LOAD = 26;
+	public final static int STORE_BATCH_TO = 27; // count (filename portCount port...)...
+	public final static int LOAD_BATCH_FROM = 28; // count (filename port filesize)...
+	public final static int STORE_BATCH_COMPLETE = 29; // count (filename outcome)..., each outcome the opcode of a reply without fields
+	public final static int REMOVE_BATCH_COMPLETE = 30; // as STORE_BATCH_COMPLETE
+	public final static int ERROR_INCOMPLETE = 31;
+	public final static int LOAD_EC_FROM = 32; // filesize dataShards port..., with port 0 for a shard that cannot be loaded
+	public final static int STORE_CHUNKS_TO = 33; // chunkSize count (portCount port...)...
+	public final static int LOAD_CHUNKS_FROM = 34; // filesize chunkSize count (portCount port...)...
+
+	/**
+	 * The opcode of a Controller reply that has no fields, or of a batch completion, given its text token.
+	 */
+	public static int opcode(String token) {
+		return switch (token) {
+			case Protocol.STORE_COMPLETE_TOKEN -> STORE_COMPLETE;
+			case Protocol.REMOVE_COMPLETE_TOKEN -> REMOVE_COMPLETE;
+			case Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN -> ERROR_FILE_DOES_NOT_EXIST;
+			case Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN -> ERROR_FILE_ALREADY_EXISTS;
+			case Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN -> ERROR_NOT_ENOUGH_DSTORES;
+			case Protocol.ERROR_LOAD_TOKEN -> ERROR_LOAD;
+			case Protocol.ERROR_INCOMPLETE_TOKEN -> ERROR_INCOMPLETE;
+			case Protocol.STORE_BATCH_COMPLETE_TOKEN -> STORE_BATCH_COMPLETE;
+			case Protocol.REMOVE_BATCH_COMPLETE_TOKEN -> REMOVE_BATCH_COMPLETE;
+			default -> throw new IllegalArgumentException(token);
+		};
+	}
+
+	/**
+	 * The text token of a client request opcode, or null if it is not one.
+	 */
+	public static String token(int opcode) {
+		return switch (opcode) {
+			case LIST -> Protocol.LIST_TOKEN;
+			case STORE -> Protocol.STORE_TOKEN;
+			case LOAD -> Protocol.LOAD_TOKEN;
+			case RELOAD -> Protocol.RELOAD_TOKEN;
+			case REMOVE -> Protocol.REMOVE_TOKEN;
+			case LIST_PAGE -> Protocol.LIST_PAGE_TOKEN;
+			case STORE_BATCH -> Protocol.STORE_BATCH_TOKEN;
+			case LOAD_BATCH -> Protocol.LOAD_BATCH_TOKEN;
+			case REMOVE_BATCH -> Protocol.REMOVE_BATCH_TOKEN;
+			case STORE_EC -> Protocol.STORE_EC_TOKEN;
+			default -> null;
+		};
+	}
+}
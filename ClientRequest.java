@@ -0,0 +1,117 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A client message in the text protocol, split once and with its numeric fields parsed: the text counterpart of a
+ * read Frame. The Controller dispatches on token and takes each message's fields from names and numbers in the
+ * order they were sent.
+ */
+public class ClientRequest {
+    final String token;
+    final List<String> names; //filenames, then a STORE's hash or LIST_PAGE's prefix and after
+    final long[] numbers; //sizes and counts, e.g. STORE_EC's filesize, k and m
+
+    private ClientRequest(String token, List<String> names, long... numbers){
+        this.token = token;
+        this.names = names;
+        this.numbers = numbers;
+    }
+
+    /**
+     * Parses one line from a client. Returns null for a message the Controller ignores: an unknown token, the wrong
+     * number of fields, or a field that should be a number and is not.
+     */
+    static ClientRequest parse(String input){
+        String[] parts = input.split(" ");
+        try {
+            switch (parts[0]) {
+                case Protocol.STORE_TOKEN -> {
+                    if (parts.length == 3) {
+                        return new ClientRequest(parts[0], List.of(parts[1]), Long.parseLong(parts[2]));
+                    }
+                    if (parts.length == 4) {
+                        return new ClientRequest(parts[0], List.of(parts[1], parts[3]), Long.parseLong(parts[2]));
+                    }
+                }
+                case Protocol.STORE_EC_TOKEN -> {
+                    if (parts.length == 5) {
+                        return new ClientRequest(parts[0], List.of(parts[1]), Long.parseLong(parts[2]), Integer.parseInt(parts[3]),
+                                Integer.parseInt(parts[4]));
+                    }
+                }
+                case Protocol.LOAD_TOKEN, Protocol.REMOVE_TOKEN, Protocol.RELOAD_TOKEN -> {
+                    if (parts.length == 2) {
+                        return new ClientRequest(parts[0], List.of(parts[1]));
+                    }
+                }
+                case Protocol.LIST_TOKEN -> {
+                    return new ClientRequest(parts[0], List.of());
+                }
+                case Protocol.LIST_PAGE_TOKEN -> {
+                    return listPage(parts);
+                }
+                case Protocol.STORE_BATCH_TOKEN -> {
+                    int n = batchSize(parts, 2);
+                    if (n >= 0) {
+                        String[] filenames = new String[n];
+                        long[] filesizes = new long[n];
+                        for (int i = 0; i < n; i++) {
+                            filenames[i] = parts[2 + 2 * i];
+                            filesizes[i] = Long.parseLong(parts[3 + 2 * i]);
+                        }
+                        return new ClientRequest(parts[0], Arrays.asList(filenames), filesizes);
+                    }
+                }
+                case Protocol.LOAD_BATCH_TOKEN, Protocol.REMOVE_BATCH_TOKEN -> {
+                    int n = batchSize(parts, 1);
+                    if (n >= 0) {
+                        return new ClientRequest(parts[0], Arrays.asList(parts).subList(2, 2 + n));
+                    }
+                }
+                default -> {
+
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * LIST_PAGE [prefix=P] [after=name] [limit=N], options in any order. Unknown options and a limit that is not a
+     * number are ignored.
+     */
+    private static ClientRequest listPage(String[] parts){
+        String prefix = "";
+        String after = "";
+        int limit = 0;
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].startsWith("prefix=")) {
+                prefix = parts[i].substring("prefix=".length());
+            } else if (parts[i].startsWith("after=")) {
+                after = parts[i].substring("after=".length());
+            } else if (parts[i].startsWith("limit=")) {
+                try {
+                    limit = Integer.parseInt(parts[i].substring("limit=".length()));
+                } catch (NumberFormatException e) {
+
+                }
+            }
+        }
+        return new ClientRequest(parts[0], List.of(prefix, after), limit);
+    }
+
+    /**
+     * The number of files in a batch message whose files have the given number of fields each, or -1 if the
+     * message does not match its count.
+     */
+    private static int batchSize(String[] parts, int fields){
+        try {
+            int n = Integer.parseInt(parts[1]);
+            return n >= 0 && parts.length == 2 + (long) n * fields ? n : -1;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
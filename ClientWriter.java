@@ -0,0 +1,390 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends the Controller's replies to one client, in the encoding the client chose when it connected. Replies can
+ * come from any thread, e.g. STORE_COMPLETE from the thread that read the last STORE_ACK, so each is written whole
+ * and flushed under the writer's lock. Like PrintWriter, a writer whose client has gone ignores write errors; the
+ * client's reader finds out and closes the connection.
+ */
+public interface ClientWriter {
+
+    /**
+     * Sends a reply that is just a token, such as STORE_COMPLETE or one of the errors.
+     */
+    void send(String token);
+
+    void storeTo(List<Integer> ports);
+
+    void loadFrom(int port, long filesize);
+
+    /**
+     * LOAD_EC_FROM filesize k port..., the Dstore of each shard of an erasure-coded file in order, or 0 for a shard
+     * that cannot be loaded.
+     */
+    void loadShardsFrom(long filesize, int dataShards, List<Integer> ports);
+
+    /**
+     * STORE_CHUNKS_TO chunkSize n (k port...)..., the Dstores to send each chunk of a chunked file to.
+     */
+    void storeChunksTo(long chunkSize, List<List<Integer>> ports);
+
+    /**
+     * LOAD_CHUNKS_FROM filesize chunkSize n (k port...)..., the Dstores holding each chunk of a chunked file, the
+     * first to be tried first.
+     */
+    void loadChunksFrom(long filesize, long chunkSize, List<List<Integer>> ports);
+
+    /**
+     * Replies to LIST with every name, writing them out as they are iterated.
+     */
+    void list(Iterable<String> filenames);
+
+    /**
+     * Replies to LIST_PAGE with one page of names, and whether a later page may hold more.
+     */
+    void listPage(boolean more, List<String> filenames);
+
+    /**
+     * STORE_BATCH_TO n (filename k port...)..., where k is 0 for a file that will not be stored.
+     */
+    void storeBatchTo(List<String> filenames, List<List<Integer>> ports);
+
+    /**
+     * LOAD_BATCH_FROM n (filename port filesize)..., where port is 0 for a file that cannot be loaded.
+     */
+    void loadBatchFrom(List<String> filenames, int[] ports, long[] filesizes);
+
+    /**
+     * token n (filename outcome)..., e.g. STORE_BATCH_COMPLETE with outcomes STORE_COMPLETE or an error.
+     */
+    void batchComplete(String token, List<String> filenames, List<String> outcomes);
+
+    /**
+     * Writes replies as lines. output should be buffered; each reply is flushed once it is complete.
+     */
+    class Text implements ClientWriter {
+        private final OutputStream output;
+        private final ReentrantLock lock;
+
+        public Text(OutputStream output){
+            this.output = output;
+            this.lock = new ReentrantLock();
+        }
+
+        @Override
+        public void send(String token){
+            line(token);
+        }
+
+        @Override
+        public void storeTo(List<Integer> ports){
+            StringBuilder line = new StringBuilder(Protocol.STORE_TO_TOKEN);
+            for (int port : ports) {
+                line.append(' ').append(port);
+            }
+            line(line.toString());
+        }
+
+        @Override
+        public void loadFrom(int port, long filesize){
+            line(Protocol.LOAD_FROM_TOKEN + " " + port + " " + filesize);
+        }
+
+        @Override
+        public void loadShardsFrom(long filesize, int dataShards, List<Integer> ports){
+            StringBuilder line = new StringBuilder(Protocol.LOAD_EC_FROM_TOKEN).append(' ').append(filesize).append(' ').append(dataShards);
+            for (int port : ports) {
+                line.append(' ').append(port);
+            }
+            line(line.toString());
+        }
+
+        @Override
+        public void storeChunksTo(long chunkSize, List<List<Integer>> ports){
+            line(chunks(new StringBuilder(Protocol.STORE_CHUNKS_TO_TOKEN), chunkSize, ports));
+        }
+
+        @Override
+        public void loadChunksFrom(long filesize, long chunkSize, List<List<Integer>> ports){
+            line(chunks(new StringBuilder(Protocol.LOAD_CHUNKS_FROM_TOKEN).append(' ').append(filesize), chunkSize, ports));
+        }
+
+        private static String chunks(StringBuilder line, long chunkSize, List<List<Integer>> ports){
+            line.append(' ').append(chunkSize).append(' ').append(ports.size());
+            for (List<Integer> chunk : ports) {
+                line.append(' ').append(chunk.size());
+                for (int port : chunk) {
+                    line.append(' ').append(port);
+                }
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void list(Iterable<String> filenames){
+            lock.lock();
+            try {
+                write(Protocol.LIST_TOKEN);
+                for (String filename : filenames) {
+                    output.write(' ');
+                    write(filename);
+                }
+                output.write('\n');
+                output.flush();
+            } catch (IOException e) {
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void listPage(boolean more, List<String> filenames){
+            StringBuilder line = new StringBuilder(Protocol.LIST_PAGE_TOKEN).append(more ? " more" : " end");
+            for (String filename : filenames) {
+                line.append(' ').append(filename);
+            }
+            line(line.toString());
+        }
+
+        @Override
+        public void storeBatchTo(List<String> filenames, List<List<Integer>> ports){
+            StringBuilder line = new StringBuilder(Protocol.STORE_BATCH_TO_TOKEN).append(' ').append(filenames.size());
+            for (int i = 0; i < filenames.size(); i++) {
+                line.append(' ').append(filenames.get(i)).append(' ').append(ports.get(i).size());
+                for (int port : ports.get(i)) {
+                    line.append(' ').append(port);
+                }
+            }
+            line(line.toString());
+        }
+
+        @Override
+        public void loadBatchFrom(List<String> filenames, int[] ports, long[] filesizes){
+            StringBuilder line = new StringBuilder(Protocol.LOAD_BATCH_FROM_TOKEN).append(' ').append(filenames.size());
+            for (int i = 0; i < filenames.size(); i++) {
+                line.append(' ').append(filenames.get(i)).append(' ').append(ports[i]).append(' ').append(filesizes[i]);
+            }
+            line(line.toString());
+        }
+
+        @Override
+        public void batchComplete(String token, List<String> filenames, List<String> outcomes){
+            StringBuilder line = new StringBuilder(token).append(' ').append(filenames.size());
+            for (int i = 0; i < filenames.size(); i++) {
+                line.append(' ').append(filenames.get(i)).append(' ').append(outcomes.get(i));
+            }
+            line(line.toString());
+        }
+
+        private void line(String line){
+            lock.lock();
+            try {
+                write(line);
+                output.write('\n');
+                output.flush();
+            } catch (IOException e) {
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void write(String text) throws IOException {
+            output.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    class Binary implements ClientWriter {
+        private static final int LIST_PART_BYTES = 64 * 1024; //LIST replies are sent in frames of about this size
+
+        private final OutputStream output;
+        private final Frame frame;
+        private final ReentrantLock lock;
+
+        public Binary(OutputStream output){
+            this.output = output;
+            this.frame = new Frame();
+            this.lock = new ReentrantLock();
+        }
+
+        @Override
+        public void send(String token){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.opcode(token));
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void storeTo(List<Integer> ports){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.STORE_TO);
+                for (int port : ports) {
+                    frame.putLong(port);
+                }
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void loadFrom(int port, long filesize){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.LOAD_FROM).putLong(port).putLong(filesize);
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void loadShardsFrom(long filesize, int dataShards, List<Integer> ports){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.LOAD_EC_FROM).putLong(filesize).putLong(dataShards);
+                for (int port : ports) {
+                    frame.putLong(port);
+                }
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void storeChunksTo(long chunkSize, List<List<Integer>> ports){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.STORE_CHUNKS_TO);
+                chunks(chunkSize, ports);
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void loadChunksFrom(long filesize, long chunkSize, List<List<Integer>> ports){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.LOAD_CHUNKS_FROM).putLong(filesize);
+                chunks(chunkSize, ports);
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void chunks(long chunkSize, List<List<Integer>> ports){
+            frame.putLong(chunkSize).putLong(ports.size());
+            for (List<Integer> chunk : ports) {
+                frame.putLong(chunk.size());
+                for (int port : chunk) {
+                    frame.putLong(port);
+                }
+            }
+        }
+
+        @Override
+        public void list(Iterable<String> filenames){
+            lock.lock();
+            try {
+                Iterator<String> names = filenames.iterator();
+                frame.begin(BinaryProtocol.LIST_PART);
+                while (names.hasNext()) {
+                    frame.putString(names.next());
+                    if (frame.size() >= LIST_PART_BYTES && names.hasNext()) {
+                        frame.writeTo(output);
+                        frame.begin(BinaryProtocol.LIST_PART);
+                    }
+                }
+                frame.setOpcode(BinaryProtocol.LIST_REPLY);
+                write();
+            } catch (IOException e) {
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void listPage(boolean more, List<String> filenames){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.LIST_PAGE_REPLY).putLong(more ? 1 : 0);
+                for (String filename : filenames) {
+                    frame.putString(filename);
+                }
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void storeBatchTo(List<String> filenames, List<List<Integer>> ports){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.STORE_BATCH_TO).putLong(filenames.size());
+                for (int i = 0; i < filenames.size(); i++) {
+                    frame.putString(filenames.get(i)).putLong(ports.get(i).size());
+                    for (int port : ports.get(i)) {
+                        frame.putLong(port);
+                    }
+                }
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void loadBatchFrom(List<String> filenames, int[] ports, long[] filesizes){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.LOAD_BATCH_FROM).putLong(filenames.size());
+                for (int i = 0; i < filenames.size(); i++) {
+                    frame.putString(filenames.get(i)).putLong(ports[i]).putLong(filesizes[i]);
+                }
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void batchComplete(String token, List<String> filenames, List<String> outcomes){
+            lock.lock();
+            try {
+                frame.begin(BinaryProtocol.opcode(token)).putLong(filenames.size());
+                for (int i = 0; i < filenames.size(); i++) {
+                    frame.putString(filenames.get(i)).putLong(BinaryProtocol.opcode(outcomes.get(i)));
+                }
+                write();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void write(){
+            try {
+                frame.writeTo(output);
+                output.flush();
+            } catch (IOException e) {
+
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The Controller's outbound command stream to one Dstore. Any thread can send; commands go onto a lock-free queue
+ * and a single drainer at a time writes everything queued and flushes once, so commands arrive whole and in the
+ * order they were queued. Commands sent while a flush is in progress are picked up by the same drainer, so a burst
+ * of REMOVEs from many clients goes out in a few writes instead of one per command.
+ *
+ * The drainer is a virtual thread of the channel's own rather than a task on the connection executor. In the pool
+ * model every pool thread can be held by an open connection, and a drain queued behind them would never run, so
+ * no command would reach the Dstore and senders would block on the full queue.
+ */
+public class CommandChannel {
+    private final PrintWriter writer;
+    private final ConcurrentLinkedQueue<String> queue;
+    private final AtomicBoolean draining;
+    private final ThreadFactory drainer;
+
+    public CommandChannel(PrintWriter writer, String name){
+        this.writer = writer;
+        this.drainer = Thread.ofVirtual().name(name).factory();
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.draining = new AtomicBoolean();
+    }
+
+    /**
+     * Queues a command line. It is written soon after, by whichever thread is draining the queue.
+     */
+    public void send(String command){
+        queue.add(command);
+        if (draining.compareAndSet(false, true)) {
+            drainer.newThread(this::drain).start();
+        }
+    }
+
+    /**
+     * Commands waiting to be written. Counts the queue, so it is for metrics rather than the send path.
+     */
+    public int queued(){
+        return queue.size();
+    }
+
+    private void drain(){
+        while (true) {
+            String command;
+            while ((command = queue.poll()) != null) {
+                writer.println(command);
+            }
+            writer.flush();
+            draining.set(false);
+            //a command queued after the last poll but before the flag was cleared found it set, so check again
+            if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Places each file on the first R distinct Dstores clockwise from its hash on a ring. Each Dstore has
+ * POINTS_PER_WEIGHT points on the ring per unit of weight, so it gets a share of new files in proportion to its
+ * weight. Adding or removing a Dstore only changes the placement of files whose points neighbour it, and rebalancing
+ * moves files to the Dstores the ring names for them (see owners), so only those files move.
+ *
+ * The ring is rebuilt on membership changes, which are rare, and read without locking, so a choice is a
+ * log N lookup followed by a short walk.
+ */
+public class ConsistentHashPlacement implements Placement {
+    private static final int POINTS_PER_WEIGHT = 128;
+
+    private volatile TreeMap<Long, Integer> ring; //immutable once published
+    private volatile int members; //distinct Dstores on the ring, so a short one is not walked in full
+    private final Map<Integer, Integer> weights;
+
+    public ConsistentHashPlacement(){
+        this.ring = new TreeMap<>();
+        this.weights = new HashMap<>();
+    }
+
+    @Override
+    public synchronized void join(int port, int weight){
+        weight = Math.max(1, weight);
+        TreeMap<Long, Integer> next = new TreeMap<>(ring);
+        next.values().removeIf(p -> p == port);
+        for (int i = 0; i < weight * POINTS_PER_WEIGHT; i++) {
+            next.put(hash(port + "#" + i), port);
+        }
+        weights.put(port, weight);
+        ring = next;
+        members = weights.size();
+    }
+
+    @Override
+    public synchronized void leave(int port){
+        if (weights.remove(port) != null) {
+            TreeMap<Long, Integer> next = new TreeMap<>(ring);
+            next.values().removeIf(p -> p == port);
+            ring = next;
+            members = weights.size();
+        }
+    }
+
+    @Override
+    public synchronized int weight(int port){
+        return weights.getOrDefault(port, 1);
+    }
+
+    @Override
+    public void replicaAdded(int port){
+
+    }
+
+    @Override
+    public void replicaRemoved(int port){
+
+    }
+
+    @Override
+    public List<Integer> choose(String filename, int count){
+        return walk(filename, Math.min(count, members), port -> true);
+    }
+
+    /**
+     * The first count distinct Dstores clockwise from filename that are among the given ones: where the file
+     * belongs once a rebalance has run with just those Dstores responding.
+     */
+    public List<Integer> owners(String filename, int count, Set<Integer> among){
+        return walk(filename, Math.min(count, among.size()), among::contains);
+    }
+
+    private List<Integer> walk(String filename, int count, IntPredicate eligible){
+        TreeMap<Long, Integer> points = ring;
+        List<Integer> chosen = new ArrayList<>(count);
+        if (points.isEmpty()) {
+            return chosen;
+        }
+        long start = hash(filename);
+        for (int port : points.tailMap(start).values()) {
+            if (chosen.size() == count) {
+                return chosen;
+            }
+            if (eligible.test(port) && !chosen.contains(port)) {
+                chosen.add(port);
+            }
+        }
+        for (int port : points.headMap(start).values()) { //wrap around
+            if (chosen.size() == count) {
+                break;
+            }
+            if (eligible.test(port) && !chosen.contains(port)) {
+                chosen.add(port);
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finaliser, which spreads similar names across the whole ring.
+     */
+    static long hash(String key){
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
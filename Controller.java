@@ -1,520 +1,1687 @@
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.logging.Logger;
-import java.util.stream.Collectors;
-
-public class Controller {
-    private static final Logger logger = Logger.getLogger(Controller.class.getName());
-
-    private final int cport; //controller port
-    private final int repFactor;
-    private final int timeout;  //milliseconds
-    private final int rebalancePeriod;  //milliseconds
-    private boolean canRebalance;
-    private final AtomicBoolean storing;
-    private final AtomicBoolean removing;
-    private final AtomicBoolean rebalancing;
-    private final List<Integer> dstorePorts;
-    private final Map<Integer,Socket> dstorePortsSockets;
-    private final Map<String, List<Integer>> filesStored; //maps filename to dstorePort
-    private final Map<String, Integer> fileSizes;
-    private final Map<String, Integer> fileAckCount;
-    private final Map<String, Boolean> fileStoreComplete;
-    private final List<String> fileRemoveComplete;
-    private final Map<String, Socket> fileSocket;
-    private final Map<Socket, List<Integer>> canReload;
-    private final Map<String, List<Integer>> filesInLoad;
-
-    public Controller(int cport, int repFactor, int timeout, int rebalancePeriod){
-        this.cport = cport;
-        this.repFactor = repFactor;
-        this.timeout = timeout;
-        this.rebalancePeriod = rebalancePeriod;
-
-        this.storing = new AtomicBoolean(false);
-        this.removing = new AtomicBoolean(false);
-        this.rebalancing = new AtomicBoolean(false);
-
-        this.dstorePorts = Collections.synchronizedList(new ArrayList<>());
-        this.dstorePortsSockets = Collections.synchronizedMap(new HashMap<>());
-        this.filesStored = Collections.synchronizedMap(new HashMap<>());
-        this.fileSizes = Collections.synchronizedMap(new HashMap<>());
-        this.fileAckCount = Collections.synchronizedMap(new HashMap<>());
-        this.fileStoreComplete = Collections.synchronizedMap(new HashMap<>());
-        this.fileRemoveComplete = Collections.synchronizedList(new ArrayList<>());
-        this.fileSocket = Collections.synchronizedMap(new HashMap<>());
-        this.canReload = Collections.synchronizedMap(new HashMap<>());
-        this.filesInLoad = Collections.synchronizedMap(new HashMap<>());
-
-        canRebalance = true;
-    }
-
-
-    public static void main(String[] args){
-        if (args.length != 4){
-            System.out.println("Invalid arguments");
-            return;
-        }
-
-        int cport = Integer.parseInt(args[0]);
-        int repFactor = Integer.parseInt(args[1]);
-        int timeout = Integer.parseInt(args[2]);
-        int rebalancePeriod = Integer.parseInt(args[3]);
-
-        Controller controller = new Controller(cport,repFactor,timeout,rebalancePeriod);
-        controller.start();
-    }
-
-    public void start(){
-        new Thread(this::clientRequests).start();
-        //new Thread(this::waitForRebalance).start();
-    }
-
-    private void clientRequests() {
-        try (ServerSocket serverSocket = new ServerSocket(cport)){
-            while (true) {
-                Socket socket = serverSocket.accept();
-                new Thread(()->handleClientRequests(socket)).start();
-            }
-        }
-        catch (IOException e){
-
-        }
-    }
-
-    private void handleClientRequests(Socket socket){
-        while (true){
-            String input = null;
-            PrintWriter writer;
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                writer = new PrintWriter(socket.getOutputStream());
-                input = reader.readLine();
-
-                if (input == null) { //only when connection closed
-                    throw new IOException();
-                }
-            }catch(IOException e){
-                break;
-            }
-            String finalInput = input;
-            if (input.startsWith(Protocol.JOIN_TOKEN)) {
-                logger.info("Join received");
-                new Thread(()->handleJOIN(socket, finalInput)).start();
-            }
-            else if (input.startsWith(Protocol.STORE_ACK_TOKEN)) {
-                logger.info("Store ACKNOWLEDGEMENT received");
-                new Thread(()->handleSTORE_ACK(finalInput)).start();
-            } else if (input.startsWith(Protocol.STORE_TOKEN)) {
-                storing.set(true);
-                logger.info("Store received");
-                new Thread(()->handleSTORE(socket, finalInput, writer)).start();
-            }
-            else if (input.startsWith(Protocol.LOAD_TOKEN)) {
-                logger.info("Load received");
-                new Thread(()->handleLOAD(socket, finalInput, writer)).start();
-            }
-            else if (input.startsWith(Protocol.REMOVE_ACK_TOKEN)){
-                logger.info("Remove ACKNOWLEDGEMENT received, I'm ignoring this");
-                //new Thread(()->handleREMOVE_ACK(finalInput)).start();
-            }
-            else if (input.startsWith(Protocol.REMOVE_TOKEN)) {
-                removing.set(true);
-                logger.info("Remove received");
-                new Thread(()->handleREMOVE(socket, finalInput, writer)).start();
-            }
-            else if (input.startsWith(Protocol.LIST_TOKEN)) {
-                logger.info("List received");
-                new Thread(()->handleLIST(socket, writer)).start();
-            } else if (input.startsWith(Protocol.RELOAD_TOKEN)) {
-                logger.info("Reload received");
-                new Thread(()->handleRELOAD(socket, finalInput, writer)).start();
-            }
-        }
-
-    }
-
-    private void handleDstoreRequests(Socket socket){
-        try{
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            while (true){
-                String input =null;
-
-                try{
-                    input = reader.readLine();
-                    if(input == null){
-                        logger.info("THERES NO INPUT ");
-                        throw new IOException();
-                    }
-                    logger.info("HEY THIS IS THE INPUT "+input);
-
-                }catch (IOException e){
-                    logger.info("Handling Dstore failure");
-                    handleDstoreFailure(socket);
-                }
-                if (input != null){
-                    if (input.startsWith(Protocol.STORE_ACK_TOKEN)){
-                        logger.info("Store ack received");
-                        String finalInput = input;
-                        if (storing.get()) {
-                            new Thread(() -> handleSTORE_ACK(finalInput)).start();
-                        }
-                    } else if (input.startsWith(Protocol.REMOVE_ACK_TOKEN)){
-                        logger.info("Remove ack received");
-                        String finalInput1 = input;
-                        if (removing.get()){
-                            new Thread(()->handleREMOVE_ACK(finalInput1)).start();
-                        }
-                    } else if (input.startsWith(Protocol.LIST_TOKEN)){
-                        //new Thread(()->handleDstoreLIST(socket)).start();
-                    } else if (input.startsWith(Protocol.REBALANCE_COMPLETE_TOKEN)){
-                        //new Thread(()->handleREBALANCE_COMPLETE()).start();
-                    } else if (input.startsWith(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)){
-                        String finalInput2 = input;
-                        //new Thread(()->handleERROR_FILE_DOES_NOT_EXIST(finalInput2)).start();
-                    } else {
-                        logger.info(input + "Uhhh, boss, this was sent.");
-                    }
-                }
-
-            }
-        } catch (Exception e){
-            logger.info("Well something must've gone wrong: "+e);
-        }
-    }
-
-    private synchronized void handleDstoreFailure(Socket socket) {
-        Integer failed = null;
-        for (Integer sock : dstorePortsSockets.keySet()) {
-            if (dstorePortsSockets.get(sock) == socket) {
-                failed = sock;
-                break;
-            }
-        }
-
-        if (failed != null) {
-            dstorePorts.remove(failed);
-            dstorePortsSockets.remove(failed);
-
-            for (String file : filesStored.keySet()) {
-                List<Integer> ports = filesStored.get(file);
-                ports.remove(failed);
-
-                if (ports.size() < repFactor) {
-                    Boolean completed = fileStoreComplete.getOrDefault(file, false);
-                    if (!completed) {
-                        filesStored.remove(file);
-                        fileSizes.remove(file);
-                        fileStoreComplete.remove(file);
-                        fileAckCount.remove(file);
-                        fileSocket.remove(file);
-                        logger.info("Removed incomplete file after Dstore crash: " + file);
-                    }
-                }
-                if (ports.isEmpty()) {
-                    filesStored.remove(file);
-                    fileSizes.remove(file);
-                    fileStoreComplete.remove(file);
-                    logger.info("Cleaned up empty stores");
-                }
-            }
-            logger.info("Handled dstore failure");
-        }
-
-    }
-
-    private synchronized void handleJOIN(Socket socket, String input){
-        if (input.split(" ").length == 2){
-            int dstorePort = Integer.parseInt(input.split(" ")[1]);
-
-            if(!dstorePorts.contains(dstorePort)){
-                logger.info("Joined port");
-                dstorePorts.add(dstorePort);
-                dstorePortsSockets.put(dstorePort,socket);
-                new Thread (()-> handleDstoreRequests(socket)).start();
-
-//                if (dstorePorts.size() > repFactor){
-//                    /**
-//                     * DO STUFF HERE
-//                     * Rebalance or something
-//                     */
-//                }
-            }
-        }
-    }
-
-    private synchronized void handleSTORE(Socket socket, String input, PrintWriter writer){
-        if (input.split(" ").length == 3){
-            String filename = input.split(" ")[1];
-            int filesize = Integer.parseInt(input.split(" ")[2]);
-
-            try{
-                if (dstorePorts.size() < repFactor){
-                    writer.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-                    writer.flush();
-                    storing.set(false);
-                    return;
-                }
-
-                if (filesStored.containsKey(filename)){
-                    writer.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-                    writer.flush();
-                    return;
-                }
-
-                List<Integer> selectedDstores = dstorePorts.stream().sorted(Comparator.comparingInt(this::countFilesForDstore)).limit(repFactor).toList();
-                filesStored.put(filename, selectedDstores);
-                fileAckCount.put(filename, 0);
-                fileStoreComplete.put(filename, false);
-                fileSocket.put(filename, socket);
-                fileSizes.put(filename,filesize);
-
-                String storeTo = selectedDstores.stream().map(Object::toString).collect(Collectors.joining(" "));
-                writer.println(Protocol.STORE_TO_TOKEN + " " +storeTo);
-                writer.flush();
-                logger.info("Sent STORE_TO "+storeTo);
-
-                ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-                scheduler.schedule(()->{
-                    if (fileAckCount.containsKey(filename) && storing.get()) {
-
-                        if (fileAckCount.get(filename) < repFactor) { // Needs cleanup due to missing acks
-                            filesStored.remove(filename);
-                            fileAckCount.remove(filename);
-                            fileStoreComplete.remove(filename);
-                            fileSocket.remove(filename);
-                            fileSizes.remove(filename);
-                        } else {
-                            fileStoreComplete.put(filename, true);
-                        }
-
-                        logger.info("Timed out store");
-                    }
-                },timeout, TimeUnit.MILLISECONDS);
-            } catch (Exception e){
-                storing.set(false);
-            }
-        }
-
-    }
-
-    private int countFilesForDstore(int port) {
-        int count = 0;
-        synchronized (filesStored) {
-            for (List<Integer> ports : filesStored.values()) {
-                if (ports.contains(port)) {
-                    count++;
-                }
-            }
-        }
-        return count;
-    }
-
-    private synchronized void handleSTORE_ACK(String input) {
-        if (input.split(" ").length == 2){
-            String filename = input.split(" ")[1];
-
-            logger.info("Handling STORE_ACK" + fileAckCount.get(filename));
-            fileAckCount.put(filename, fileAckCount.get(filename)+1);
-            if (fileAckCount.get(filename) >= repFactor) {
-                fileStoreComplete.put(filename,true);
-                storing.set(false);
-                try{
-                    logger.info("Sending STORE_COMPLETE");
-                    PrintWriter writer = new PrintWriter(fileSocket.get(filename).getOutputStream());
-                    writer.println(Protocol.STORE_COMPLETE_TOKEN);
-                    writer.flush();
-                    fileAckCount.put(filename,0);
-                } catch (Exception ignored){
-
-                }
-            }
-        }
-
-    }
-
-    private synchronized void handleLOAD(Socket socket, String input, PrintWriter writer){
-        if (input.split(" ").length == 2){
-            String filename = input.split(" ")[1];
-            if (!filesInLoad.containsKey(filename)){
-                filesInLoad.put(filename, new ArrayList<>());
-            }
-
-            if (dstorePorts.size() < repFactor){
-                writer.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-                writer.flush();
-                return;
-            }
-
-            if (!filesStored.containsKey(filename)){
-                writer.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                writer.flush();
-                return;
-            }
-            List<Integer> ports = filesStored.get(filename).stream().filter(dstorePorts::contains).toList();
-
-            if (ports.isEmpty()) {
-                writer.println(Protocol.ERROR_LOAD_TOKEN);
-                writer.flush();
-                return;
-            }
-
-            canReload.put(socket, new ArrayList<>(ports));
-            int port = ports.get(0);
-
-            int fileSize = fileSizes.get(filename);
-            writer.println(Protocol.LOAD_FROM_TOKEN + " " + port + " " + fileSize);
-            writer.flush();
-            logger.info("Sending LOAD_FROM");
-        }
-
-    }
-
-    private synchronized void handleRELOAD(Socket socket, String input, PrintWriter writer) {
-        if (input.split(" ").length == 2) {
-            String filename = input.split(" ")[1];
-
-            logger.info("Handling RELOAD");
-            if (canReload.containsKey(socket)) {
-                List<Integer> toReload = canReload.get(socket);
-                toReload.removeIf(port -> !dstorePorts.contains(port));
-
-                if (!toReload.isEmpty()){
-                    int port = toReload.removeLast();
-                    int fileSize = fileSizes.get(filename);
-                    writer.println(Protocol.LOAD_FROM_TOKEN+" "+port+" "+fileSize);
-                    writer.flush();
-                } else{
-                    canReload.remove(socket);
-                    writer.println(Protocol.ERROR_LOAD_TOKEN);
-                    writer.flush();
-                    logger.info("Sending ERROR_LOAD");
-                }
-            } else {
-                logger.info("Need to load before reload");
-            }
-        }
-    }
-
-    private synchronized void handleREMOVE(Socket socket, String input, PrintWriter writer){
-        logger.info("I'm removing here");
-        if (input.split(" ").length == 2){
-            String filename = input.split(" ")[1];
-            for (int p:dstorePorts) {
-                logger.info("THESE ARE THE PORTS DANG IT: "+p);
-            }
-
-            if (dstorePorts.size() < repFactor){
-                writer.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-                writer.flush();
-                logger.info("Sending NOT ENOUGH DSTORES");
-                removing.set(false);
-                return;
-            }
-
-            if (!filesStored.containsKey(filename)){
-                writer.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                writer.flush();
-                logger.info("Sending FILE DOESNT EXIST");
-                return;
-            }
-
-            List<Integer> list = filesStored.get(filename);
-            if (list != null /*&& fileStoreComplete.get(filename)*/){
-                for (Integer port:list) {
-                    new Thread(()->{
-                        try {
-                            PrintWriter out = new PrintWriter(dstorePortsSockets.get(port).getOutputStream(),true);
-                            out.println(Protocol.REMOVE_TOKEN + " " + filename);
-                            out.flush();
-                            logger.info("Sending REMOVE_TOKEN to client??");
-                        } catch (Exception e) {
-
-                        }
-                    }).start();
-                }
-                fileSocket.put(filename, socket);
-                fileAckCount.put(filename, 0);
-                if(!fileRemoveComplete.contains(filename)){
-                    fileRemoveComplete.add(filename);
-                }
-                //fileStoreComplete.put(filename,false);
-            } else { logger.info("List empty"); }
-            ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-            scheduler.schedule(()->{
-                if (fileAckCount.containsKey(filename) && !removing.get()) {
-                    //fileStoreComplete.put(filename,true);
-                    fileAckCount.remove(filename);
-                    fileSocket.remove(filename);
-                    logger.info("Timed out remove");
-                }
-            },timeout, TimeUnit.MILLISECONDS);
-        }
-    }
-
-    private synchronized void handleREMOVE_ACK(String input) {
-        if (input.split(" ").length == 2){
-            String filename = input.split(" ")[1];
-
-            List<Integer> list = filesStored.get(filename);
-            Socket s = fileSocket.get(filename);
-            logger.info("Handling REMOVE_ACK" + fileAckCount.get(filename));
-            if (list != null && s != null) {
-                synchronized (fileAckCount){
-                    fileAckCount.put(filename, fileAckCount.get(filename) + 1);
-                    int expectedAcks = filesStored.get(filename).size();
-                    if (fileAckCount.get(filename) == expectedAcks) {
-                        filesStored.remove(filename);
-                        fileAckCount.remove(filename);
-                        fileStoreComplete.remove(filename);
-                        fileRemoveComplete.remove(filename);
-                        fileSizes.remove(filename);
-                        removing.set(false);
-                        try{
-                            PrintWriter writer = new PrintWriter(s.getOutputStream());
-                            writer.println(Protocol.REMOVE_COMPLETE_TOKEN);
-                            writer.flush();
-                            logger.info("Sending REMOVE_COMPLETE");
-                        } catch (Exception e){
-
-                        }
-                        fileSocket.remove(filename);
-                    }
-                }
-
-            } else {
-                logger.info("List is null? "+ (list == null) + " and the socket: "+(s==null));
-            }
-        }
-    }
-
-    private synchronized void handleLIST(Socket socket, PrintWriter writer){
-
-        if (dstorePorts.size() < repFactor){
-            writer.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-            writer.flush();
-            return;
-        }
-
-        String output = Protocol.LIST_TOKEN;
-        if (!filesStored.isEmpty()){
-            synchronized (filesStored){
-                for (String file : filesStored.keySet()) {
-                    if (fileStoreComplete.getOrDefault(file, false)&& !fileRemoveComplete.contains(file)) {
-                        output = output + " " + file;
-                    }
-                }
-            }
-
-        }
-        writer.println(output);
-        writer.flush();
-        logger.info("Listed: "+output);
-    }
-}
\ No newline at end of file
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+public class Controller {
+    private static final Logger logger = Logger.getLogger(Controller.class.getName());
+    private static final boolean DEBUG = Boolean.getBoolean("debug"); //log every message; constant, so free when off
+    private static final int DEFAULT_PAGE = 1000; //files per LIST_PAGE reply when the client gives no limit
+    private static final int MAX_PAGE = 100000;
+
+    private final int cport; //controller port
+    private final int repFactor;
+    private final int timeout;  //milliseconds
+    private final int rebalancePeriod;  //seconds
+    private final AtomicBoolean rebalancing;
+    private final Semaphore rebalanceRequests; //released to run a rebalance or repair before the period is up
+    private final AtomicBoolean rebalanceWanted; //a full rebalance was requested, not just a repair
+    private final Set<String> repairs; //stored files that lost a replica with a failed Dstore
+    private final Map<Integer, CompletableFuture<String>> pendingLists; //Dstore LIST replies awaited by a rebalance
+    private final boolean listDelta; //ask Dstores only for changes since their last LIST
+    private final Map<Integer, Set<String>> dstoreFiles; //each Dstore's files as of its last reply, for listDelta
+    private final Map<Integer, CompletableFuture<Void>> pendingRebalances; //REBALANCE_COMPLETE awaited from each Dstore
+    private final Map<String, CompletableFuture<Void>> pendingRebuilds; //REBUILD_ACK awaited for "filename shard"
+    private final List<Integer> dstorePorts;
+    private final Map<Integer,Socket> dstorePortsSockets;
+    private final Map<Integer,CommandChannel> dstoreChannels; //commands to each Dstore
+    private final Placement placement;
+    private final FileIndex index;
+    private final Map<Socket, ReplicaSelector.Load> canReload; //each client's current load, for RELOAD
+    private final ReplicaSelector replicaSelector;
+    private final TimerWheel timeouts;
+    private final ExecutorService connections;
+    private final int heartbeatPeriod; //milliseconds, 0 if Dstores are only failed when their connection drops
+    private final FailureDetector detector;
+    private final Metrics metrics;
+    private final boolean dedup; //store content already held, going by the client's hash, by linking to it
+    private final long chunkBytes; //files larger than this are stored as chunks of this size, 0 for never
+
+    public Controller(int cport, int repFactor, int timeout, int rebalancePeriod){
+        this.cport = cport;
+        this.repFactor = repFactor;
+        this.timeout = timeout;
+        this.rebalancePeriod = rebalancePeriod;
+
+        this.rebalancing = new AtomicBoolean(false);
+        this.rebalanceRequests = new Semaphore(0);
+        this.rebalanceWanted = new AtomicBoolean(false);
+        this.repairs = ConcurrentHashMap.newKeySet();
+        this.pendingLists = new ConcurrentHashMap<>();
+        this.pendingRebalances = new ConcurrentHashMap<>();
+        this.pendingRebuilds = new ConcurrentHashMap<>();
+        this.listDelta = Boolean.getBoolean("rebalance.listDelta");
+        this.dstoreFiles = new ConcurrentHashMap<>();
+
+        this.dstorePorts = new CopyOnWriteArrayList<>();
+        this.dstorePortsSockets = new ConcurrentHashMap<>();
+        this.dstoreChannels = new ConcurrentHashMap<>();
+        this.placement = Placement.fromProperties();
+        String indexFolder = System.getProperty("controller.index");
+        IndexLog log = indexFolder == null ? null
+                : new IndexLog(Path.of(indexFolder), Boolean.getBoolean("controller.index.fsync"), Long.getLong("controller.index.snapshotEvery", 100000));
+        this.index = new FileIndex(placement, log);
+        this.canReload = new ConcurrentHashMap<>();
+        this.replicaSelector = new ReplicaSelector();
+        this.timeouts = new TimerWheel(10, 512);
+        this.connections = ExecutionModel.forConnections("controller");
+        this.heartbeatPeriod = Integer.getInteger("controller.heartbeat", 0);
+        this.detector = new FailureDetector(heartbeatPeriod, Double.parseDouble(System.getProperty("controller.heartbeat.phi", "8")));
+        this.metrics = new Metrics();
+        this.dedup = Boolean.getBoolean("controller.dedup");
+        this.chunkBytes = Long.getLong("controller.chunk.bytes", 0);
+    }
+
+
+    public static void main(String[] args){
+        if (args.length != 4){
+            System.out.println("Invalid arguments");
+            return;
+        }
+
+        int cport = Integer.parseInt(args[0]);
+        int repFactor = Integer.parseInt(args[1]);
+        int timeout = Integer.parseInt(args[2]);
+        int rebalancePeriod = Integer.parseInt(args[3]);
+
+        Controller controller = new Controller(cport,repFactor,timeout,rebalancePeriod);
+        controller.start();
+    }
+
+    public void start(){
+        try {
+            index.recover(); //Dstores are reconciled with it by the rebalance each JOIN triggers
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        metrics.gauge("dstores", dstorePorts::size);
+        metrics.gauge("acks.pending", timeouts::pending); //every store or remove waiting on acks has a timeout
+        metrics.register("Controller:type=Metrics");
+        new Thread(this::clientRequests).start();
+        new Thread(this::waitForRebalance).start();
+        if (heartbeatPeriod > 0) {
+            new Thread(this::heartbeats).start();
+        }
+    }
+
+    /**
+     * Runs a rebalance every rebalancePeriod, or sooner when one is requested, and re-replicates the files of a
+     * failed Dstore as soon as it is found. Requests that arrive while a rebalance is running are folded into the
+     * next one.
+     */
+    private void waitForRebalance(){
+        while (true){
+            try {
+                boolean requested = rebalanceRequests.tryAcquire(rebalancePeriod, TimeUnit.SECONDS);
+                rebalanceRequests.drainPermits();
+                if (!repairs.isEmpty()) {
+                    repair();
+                }
+                if (!requested || rebalanceWanted.getAndSet(false)) {
+                    rebalance();
+                    if (!repairs.isEmpty()) {
+                        repair(); //shards the rebalance found missing
+                    }
+                }
+            } catch (InterruptedException e){
+                return;
+            } catch (Exception e){
+                logger.info("Rebalance failed: "+e);
+            }
+        }
+    }
+
+    private void requestRebalance(){
+        rebalanceWanted.set(true);
+        rebalanceRequests.release();
+    }
+
+    /**
+     * Sends HEARTBEAT to every Dstore each heartbeatPeriod and fails those the detector suspects, so a Dstore that
+     * hangs with its connection still open stops being given files or LOADs.
+     */
+    private void heartbeats(){
+        while (true) {
+            try {
+                Thread.sleep(heartbeatPeriod);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Map.Entry<Integer, CommandChannel> dstore : dstoreChannels.entrySet()) {
+                int port = dstore.getKey();
+                Socket socket = dstorePortsSockets.get(port);
+                if (socket != null && detector.isSuspected(port)) {
+                    logger.info("Dstore "+port+" missed its heartbeats, phi "+detector.phi(port));
+                    handleDstoreFailure(port, socket);
+                    try {
+                        socket.close(); //ends its reader, and the Dstore rejoins if it comes back
+                    } catch (IOException ignored) {
+
+                    }
+                } else {
+                    dstore.getValue().send(Protocol.HEARTBEAT_TOKEN);
+                }
+            }
+        }
+    }
+
+    private void clientRequests() {
+        if ("nio".equals(System.getProperty("controller.io"))) {
+            int threads = Integer.getInteger("controller.io.threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+            try {
+                new EventLoop(cport, threads, new ClientEvents(), connections).run();
+            } catch (IOException e) {
+                logger.info("Event loop failed: "+e);
+            }
+            return;
+        }
+        try (ServerSocket serverSocket = new ServerSocket(cport)){
+            while (true) {
+                Socket socket = serverSocket.accept();
+                connections.execute(()->handleClientRequests(socket));
+            }
+        }
+        catch (IOException e){
+
+        }
+    }
+
+    private void handleClientRequests(Socket socket){
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            in.mark(1);
+            if (in.read() == BinaryProtocol.MAGIC) {
+                ClientWriter client = new ClientWriter.Binary(socket.getOutputStream());
+                Frame frame = new Frame();
+                while (frame.read(in)) {
+                    handleClientFrame(socket, frame, client);
+                }
+                return;
+            }
+            in.reset();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream());
+            ClientWriter client = new ClientWriter.Text(new BufferedOutputStream(socket.getOutputStream()));
+            while (true){
+                String input = reader.readLine();
+                if (input == null) { //only when connection closed
+                    break;
+                }
+                if (input.split(" ", 2)[0].equals(Protocol.JOIN_TOKEN)) {
+                    logger.info("Join received");
+                    int dstorePort = handleJOIN(socket, writer, input.split(" "));
+                    if (dstorePort != -1) {
+                        handleDstoreRequests(socket, reader, dstorePort); //the connection now belongs to this Dstore
+                        return;
+                    }
+                } else {
+                    handleClientMessage(socket, input, client);
+                }
+            }
+        } catch (IOException e){
+            logger.info("Client connection closed: "+e);
+        } finally {
+            endLoad(socket);
+        }
+
+    }
+
+    /**
+     * Handles one text message from a client other than JOIN.
+     */
+    private void handleClientMessage(Socket socket, String input, ClientWriter client){
+        long start = System.nanoTime();
+        ClientRequest request = ClientRequest.parse(input);
+        if (request == null || !request.token.equals(Protocol.RELOAD_TOKEN)) {
+            endLoad(socket); //moving on, so the last load succeeded
+        }
+        if (request == null) {
+            logger.info("Ignoring unknown or malformed client message: "+input); //as the coursework protocol does
+            return;
+        }
+
+        List<String> names = request.names;
+        long[] numbers = request.numbers;
+        switch (request.token) {
+            case Protocol.STORE_TOKEN -> {
+                if (DEBUG) logger.info("Store received");
+                handleSTORE(names.get(0), numbers[0], names.size() == 2 ? names.get(1) : null, client);
+            }
+            case Protocol.STORE_EC_TOKEN -> {
+                if (DEBUG) logger.info("Erasure-coded store received");
+                handleSTORE_EC(names.get(0), numbers[0], (int) numbers[1], (int) numbers[2], client);
+            }
+            case Protocol.LOAD_TOKEN -> {
+                if (DEBUG) logger.info("Load received");
+                handleLOAD(socket, names.get(0), client);
+            }
+            case Protocol.REMOVE_TOKEN -> {
+                if (DEBUG) logger.info("Remove received");
+                handleREMOVE(names.get(0), client);
+            }
+            case Protocol.LIST_TOKEN -> {
+                if (DEBUG) logger.info("List received");
+                handleLIST(client);
+            }
+            case Protocol.LIST_PAGE_TOKEN -> {
+                if (DEBUG) logger.info("List page received");
+                handleLIST_PAGE(names.get(0), names.get(1), (int) numbers[0], client);
+            }
+            case Protocol.RELOAD_TOKEN -> {
+                if (DEBUG) logger.info("Reload received");
+                handleRELOAD(socket, names.get(0), client);
+            }
+            case Protocol.STORE_BATCH_TOKEN -> {
+                if (DEBUG) logger.info("Store batch received");
+                List<Long> filesizes = new ArrayList<>(numbers.length);
+                for (long filesize : numbers) {
+                    filesizes.add(filesize);
+                }
+                handleSTORE_BATCH(names, filesizes, client);
+            }
+            case Protocol.LOAD_BATCH_TOKEN -> {
+                if (DEBUG) logger.info("Load batch received");
+                handleLOAD_BATCH(names, client);
+            }
+            case Protocol.REMOVE_BATCH_TOKEN -> {
+                if (DEBUG) logger.info("Remove batch received");
+                handleREMOVE_BATCH(names, client);
+            }
+        }
+        metrics.record(request.token, start);
+    }
+
+    /**
+     * Handles one frame from a client that opened its connection with BinaryProtocol.MAGIC. The frame is parsed in
+     * place, and replies are built in a frame reused for the whole connection.
+     */
+    private void handleClientFrame(Socket socket, Frame frame, ClientWriter client){
+        long start = System.nanoTime();
+        if (frame.opcode != BinaryProtocol.RELOAD) {
+            endLoad(socket);
+        }
+        try {
+            switch (frame.opcode) {
+                case BinaryProtocol.STORE -> handleSTORE(frame.nextString(), frame.nextLong(), frame.hasMore() ? frame.nextString() : null, client);
+                case BinaryProtocol.STORE_EC -> handleSTORE_EC(frame.nextString(), frame.nextLong(), (int) frame.nextLong(), (int) frame.nextLong(), client);
+                case BinaryProtocol.LOAD -> handleLOAD(socket, frame.nextString(), client);
+                case BinaryProtocol.REMOVE -> handleREMOVE(frame.nextString(), client);
+                case BinaryProtocol.LIST -> handleLIST(client);
+                case BinaryProtocol.LIST_PAGE -> handleLIST_PAGE(frame.nextString(), frame.nextString(), (int) frame.nextLong(), client);
+                case BinaryProtocol.RELOAD -> handleRELOAD(socket, frame.nextString(), client);
+                case BinaryProtocol.STORE_BATCH -> {
+                    int n = (int) frame.nextLong();
+                    List<String> filenames = new ArrayList<>();
+                    List<Long> filesizes = new ArrayList<>();
+                    for (int i = 0; i < n; i++) {
+                        filenames.add(frame.nextString());
+                        filesizes.add(frame.nextLong());
+                    }
+                    handleSTORE_BATCH(filenames, filesizes, client);
+                }
+                case BinaryProtocol.LOAD_BATCH, BinaryProtocol.REMOVE_BATCH -> {
+                    int n = (int) frame.nextLong();
+                    List<String> filenames = new ArrayList<>();
+                    for (int i = 0; i < n; i++) {
+                        filenames.add(frame.nextString());
+                    }
+                    if (frame.opcode == BinaryProtocol.LOAD_BATCH) {
+                        handleLOAD_BATCH(filenames, client);
+                    } else {
+                        handleREMOVE_BATCH(filenames, client);
+                    }
+                }
+                default -> logger.info("Unknown client opcode: "+frame.opcode);
+            }
+            String token = BinaryProtocol.token(frame.opcode);
+            if (token != null) {
+                metrics.record(token, start);
+            }
+        } catch (IllegalArgumentException e) {
+            logger.info("Bad frame from client: "+e);
+        }
+    }
+
+    /**
+     * Client messages arriving through the EventLoop. A Dstore's connection is handed off to a thread of its own
+     * when it joins, since rebalances and removes write to it directly.
+     */
+    private class ClientEvents implements EventLoop.Handler {
+        @Override
+        public void onLine(EventLoop.Connection connection, String line){
+            String token = line.split(" ", 2)[0];
+            if (token.equals(Protocol.LIST_TOKEN)) {
+                //written as the client reads it rather than buffered whole, as on a blocking connection
+                connection.offload(() -> handleClientMessage(connection.socket(), line, connection.writer()));
+                return;
+            }
+            if (!token.equals(Protocol.JOIN_TOKEN)) {
+                handleClientMessage(connection.socket(), line, connection.writer());
+                return;
+            }
+            logger.info("Join received");
+            connection.handOff((socket, input) -> {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+                PrintWriter writer = new PrintWriter(socket.getOutputStream());
+                int dstorePort = handleJOIN(socket, writer, line.split(" "));
+                if (dstorePort != -1) {
+                    handleDstoreRequests(socket, reader, dstorePort);
+                }
+            });
+        }
+
+        @Override
+        public void onFrame(EventLoop.Connection connection, Frame frame){
+            if (frame.opcode == BinaryProtocol.LIST) {
+                //the frame is not read into again until the offloaded LIST has finished
+                connection.offload(() -> handleClientFrame(connection.socket(), frame, connection.writer()));
+                return;
+            }
+            handleClientFrame(connection.socket(), frame, connection.writer());
+        }
+
+        @Override
+        public void onClose(EventLoop.Connection connection){
+            endLoad(connection.socket());
+        }
+    }
+
+    private void handleDstoreRequests(Socket socket, BufferedReader reader, int port){
+        try{
+            while (true){
+                String input =null;
+
+                try{
+                    input = reader.readLine();
+                    if(input == null){
+                        throw new IOException("Connection closed");
+                    }
+                    if (DEBUG) logger.info("Dstore "+port+" sent "+input);
+
+                }catch (IOException e){
+                    logger.info("Handling Dstore failure");
+                    handleDstoreFailure(port, socket);
+                    return;
+                }
+                String[] parts = input.split(" ");
+                if (parts[0].equals(Protocol.HEARTBEAT_ACK_TOKEN)) {
+                    detector.heartbeat(port);
+                    continue;
+                }
+                detector.heard(port);
+                try {
+                    switch (parts[0]) {
+                        case Protocol.STORE_ACK_TOKEN -> {
+                            if (DEBUG) logger.info("Store ack received");
+                            if (parts.length == 2) {
+                                handleSTORE_ACK(port, parts[1]);
+                            }
+                        }
+                        case Protocol.STORE_BATCH_ACK_TOKEN -> {
+                            if (DEBUG) logger.info("Store batch ack received");
+                            for (int i = 1; i < parts.length; i++) {
+                                handleSTORE_ACK(port, parts[i]);
+                            }
+                        }
+                        case Protocol.REBUILD_ACK_TOKEN -> {
+                            if (DEBUG) logger.info("Rebuild ack received");
+                            if (parts.length == 3) {
+                                handleREBUILD_ACK(port, parts[1], Integer.parseInt(parts[2]));
+                            }
+                        }
+                        case Protocol.LINK_FAILED_TOKEN -> {
+                            if (DEBUG) logger.info("Link failed received");
+                            if (parts.length == 2) {
+                                handleLINK_FAILED(port, parts[1]);
+                            }
+                        }
+                        case Protocol.REMOVE_ACK_TOKEN, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN -> {
+                            //a missing file is already gone from that Dstore, e.g. moved away by a rebalance
+                            if (DEBUG) logger.info("Remove ack received");
+                            if (parts.length == 2) {
+                                handleREMOVE_ACK(port, parts[1]);
+                            }
+                        }
+                        case Protocol.LIST_TOKEN, Protocol.LIST_DELTA_TOKEN -> {
+                            if (DEBUG) logger.info("Dstore list received");
+                            handleDstoreLIST(port, input);
+                        }
+                        case Protocol.REBALANCE_COMPLETE_TOKEN -> {
+                            if (DEBUG) logger.info("Rebalance complete received");
+                            handleREBALANCE_COMPLETE(port);
+                        }
+                        default -> {
+                            if (DEBUG) logger.info("Unknown message from Dstore "+port+": "+input);
+                        }
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    logger.info("Ignoring malformed message from Dstore "+port+": "+input);
+                }
+
+            }
+        } catch (Exception e){
+            logger.info("Well something must've gone wrong: "+e);
+        }
+    }
+
+    /**
+     * Takes failed out of service and drops it from the replicas of the files it held, found through the index's
+     * reverse index rather than a scan of every file. Stored files left short of replicas are queued for repair.
+     * Does nothing if socket is no longer failed's connection, e.g. when both its reader and the heartbeats notice.
+     */
+    private void handleDstoreFailure(int failed, Socket socket) {
+        if (!dstorePortsSockets.remove(failed, socket)) {
+            return;
+        }
+        dstorePorts.remove(Integer.valueOf(failed));
+        dstoreChannels.remove(failed);
+        dstoreFiles.remove(failed);
+        detector.leave(failed);
+        placement.leave(failed);
+        replicaSelector.forget(failed);
+
+        for (String file : List.copyOf(index.filesOn(failed))) {
+            index.lockFor(file).lock();
+            try {
+                FileIndex.Entry entry = index.get(file);
+                if (entry == null || !entry.replicas.contains(failed)) {
+                    continue;
+                }
+                List<Integer> ports = new ArrayList<>(entry.replicas);
+                ports.remove(Integer.valueOf(failed));
+                index.setReplicas(entry, ports);
+
+                if (ports.size() < wanted(entry) && entry.state == FileIndex.State.STORE_IN_PROGRESS) {
+                    index.remove(file);
+                    fail(entry);
+                    logger.info("Removed incomplete file after Dstore crash: " + file);
+                } else if (entry.state == FileIndex.State.REMOVE_IN_PROGRESS && entry.isAcked()) {
+                    completeRemove(entry);
+                } else if (ports.isEmpty()) {
+                    index.remove(file);
+                    logger.info("Cleaned up empty stores");
+                } else if (entry.state == FileIndex.State.STORED && ports.size() < wanted(entry)) {
+                    repairs.add(file);
+                }
+            } finally {
+                index.lockFor(file).unlock();
+            }
+        }
+        metrics.increment("dstore.failures");
+        metrics.removeGauge("commands.queued." + failed);
+        logger.info("Handled dstore failure");
+        rebalanceRequests.release();
+    }
+
+    /**
+     * JOIN port [weight]: the optional weight is the Dstore's capacity relative to the default of 1.
+     */
+    private int handleJOIN(Socket socket, PrintWriter writer, String[] parts){
+        if (parts.length == 2 || parts.length == 3){
+            int dstorePort;
+            int weight;
+            try {
+                dstorePort = Integer.parseInt(parts[1]);
+                weight = parts.length == 3 ? Integer.parseInt(parts[2]) : 1;
+            } catch (NumberFormatException e) {
+                logger.info("Ignoring malformed JOIN");
+                return -1;
+            }
+
+            if(dstorePortsSockets.putIfAbsent(dstorePort, socket) == null){
+                logger.info("Joined port");
+                placement.join(dstorePort, weight);
+                detector.join(dstorePort);
+                dstoreFiles.remove(dstorePort); //a new connection starts with a full LIST
+                CommandChannel channel = new CommandChannel(writer, "commands-" + dstorePort);
+                dstoreChannels.put(dstorePort, channel);
+                metrics.gauge("commands.queued." + dstorePort, channel::queued);
+                dstorePorts.add(dstorePort);
+                requestRebalance();
+                return dstorePort;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * hash is the client's hash of the content, or null. With dedup on, content already stored under another name is
+     * stored again by having the Dstores holding it link the new name to it, and the client is sent STORE_COMPLETE
+     * without uploading anything.
+     */
+    private void handleSTORE(String filename, long filesize, String hash, ClientWriter client){
+        store(filename, filesize, dedup ? hash : null, dedup, client);
+    }
+
+    private void store(String filename, long filesize, String hash, boolean link, ClientWriter client){
+        try{
+            if (dstorePorts.size() < repFactor){
+                client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                return;
+            }
+
+            FileIndex.Entry entry;
+            index.lockFor(filename).lock();
+            try {
+                if (index.get(filename) != null){
+                    client.send(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                    return;
+                }
+                if (link && hash != null && startLink(filename, filesize, hash, client)) {
+                    return;
+                }
+
+                if (chunkBytes > 0 && filesize > chunkBytes) {
+                    entry = new FileIndex.Entry(filename, filesize, List.of(), client);
+                    entry.chunkSize = chunkBytes;
+                    entry.chunks = (int) ((filesize + chunkBytes - 1) / chunkBytes);
+                    index.put(entry); //completed by its chunks, so no timeout of its own
+                } else {
+                    List<Integer> selectedDstores = placement.choose(filename, repFactor);
+                    if (selectedDstores.size() < repFactor){
+                        client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                        return;
+                    }
+                    entry = new FileIndex.Entry(filename, filesize, selectedDstores, client);
+                    entry.hash = hash;
+                    startStore(entry);
+                }
+            } finally {
+                index.lockFor(filename).unlock();
+            }
+
+            if (entry.isChunked()) {
+                storeChunks(entry, client);
+                return;
+            }
+            client.storeTo(entry.replicas);
+            if (DEBUG) logger.info("Sent STORE_TO "+entry.replicas);
+        } catch (Exception e){
+            logger.info("Store failed: "+e);
+        }
+
+    }
+
+    /**
+     * Places each chunk of a file larger than chunkBytes as a file of its own, named FileIndex.chunkName, and replies
+     * STORE_CHUNKS_TO. The client uploads chunk i to its Dstores with an ordinary STORE of that name, and gets
+     * STORE_COMPLETE once every chunk is stored. If a chunk cannot be placed, the chunks placed so far are dropped
+     * and the client gets the error instead.
+     */
+    private void storeChunks(FileIndex.Entry parent, ClientWriter client){
+        List<String> names = chunkNames(parent);
+        //the last chunk settles on a Dstore reader or the timer thread, holding a file's lock, which must not park
+        //waiting for room in the connection pool
+        Batch batch = new Batch(names, outcomes -> Thread.ofVirtual().name("chunks").start(() -> completeChunks(parent, names, outcomes)));
+        List<List<Integer>> storeTo = new ArrayList<>(names.size());
+        String error = null;
+        for (int i = 0; i < names.size() && error == null; i++) {
+            String name = names.get(i);
+            index.lockFor(name).lock();
+            try {
+                List<Integer> selectedDstores;
+                if (index.get(name) != null) {
+                    error = Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN;
+                } else if ((selectedDstores = placement.choose(name, repFactor)).size() < repFactor) {
+                    error = Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN;
+                } else {
+                    long size = Math.min(parent.chunkSize, parent.size - i * parent.chunkSize);
+                    FileIndex.Entry chunk = new FileIndex.Entry(name, size, selectedDstores, null);
+                    chunk.chunk = true;
+                    chunk.batch = batch;
+                    chunk.batchIndex = i;
+                    startStore(chunk);
+                    storeTo.add(chunk.replicas);
+                }
+            } finally {
+                index.lockFor(name).unlock();
+            }
+        }
+
+        if (error != null) {
+            for (int i = 0; i < storeTo.size(); i++) {
+                dropChunk(names.get(i), FileIndex.State.STORE_IN_PROGRESS);
+            }
+            index.lockFor(parent.filename).lock();
+            try {
+                index.remove(parent.filename);
+                parent.client = null;
+            } finally {
+                index.lockFor(parent.filename).unlock();
+            }
+            client.send(error);
+            return;
+        }
+        client.storeChunksTo(parent.chunkSize, storeTo);
+        batch.ready();
+        if (DEBUG) logger.info("Sent STORE_CHUNKS_TO for "+names.size()+" chunks of "+parent.filename);
+    }
+
+    /**
+     * Completes the store of a chunked file once each of its chunks has settled. If any was not stored, the file
+     * and its stored chunks are dropped, and the next rebalance deletes the chunks' copies.
+     */
+    private void completeChunks(FileIndex.Entry parent, List<String> names, List<String> outcomes){
+        boolean stored = outcomes.stream().allMatch(Protocol.STORE_COMPLETE_TOKEN::equals);
+        if (!stored) {
+            for (String name : names) {
+                dropChunk(name, FileIndex.State.STORED);
+            }
+        }
+        index.lockFor(parent.filename).lock();
+        try {
+            if (index.get(parent.filename) != parent || parent.state != FileIndex.State.STORE_IN_PROGRESS) {
+                return;
+            }
+            if (stored) {
+                index.markStored(parent);
+                reply(parent, Protocol.STORE_COMPLETE_TOKEN);
+            } else {
+                index.remove(parent.filename);
+                fail(parent);
+                logger.info("Dropped chunked file "+parent.filename+", not every chunk was stored");
+            }
+        } finally {
+            index.lockFor(parent.filename).unlock();
+        }
+    }
+
+    /**
+     * Removes a chunk from the index if it is in the given state. Must be called without its file's lock: lock
+     * stripes are shared, so a chunk and its file may share one, and a thread holding one chunk's lock may wait
+     * for the file's.
+     */
+    private void dropChunk(String name, FileIndex.State state){
+        index.lockFor(name).lock();
+        try {
+            FileIndex.Entry chunk = index.get(name);
+            if (chunk != null && chunk.state == state) {
+                index.remove(name);
+                chunk.batch = null;
+                if (chunk.deadline != null) {
+                    chunk.deadline.cancel();
+                }
+            }
+        } finally {
+            index.lockFor(name).unlock();
+        }
+    }
+
+    private static List<String> chunkNames(FileIndex.Entry parent){
+        List<String> names = new ArrayList<>(parent.chunks);
+        for (int i = 0; i < parent.chunks; i++) {
+            names.add(FileIndex.chunkName(parent.filename, i));
+        }
+        return names;
+    }
+
+    /**
+     * STORE_EC filename filesize k m: stores the file as k data and m parity shards on k+m different Dstores instead
+     * of as repFactor full copies. The reply is STORE_TO with the Dstores in shard order; the client uploads shard i,
+     * of ReedSolomon.shardSize bytes, to the i-th with an ordinary STORE and gets STORE_COMPLETE once every shard is
+     * stored.
+     */
+    private void handleSTORE_EC(String filename, long filesize, int dataShards, int parityShards, ClientWriter client){
+        try{
+            int shards = dataShards + parityShards;
+            if (dataShards < 1 || parityShards < 0 || shards > 256) {
+                logger.info("Ignoring STORE_EC "+filename+" with "+dataShards+"+"+parityShards+" shards");
+                return;
+            }
+            if (dstorePorts.size() < Math.max(repFactor, shards)){
+                client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                return;
+            }
+
+            FileIndex.Entry entry;
+            index.lockFor(filename).lock();
+            try {
+                if (index.get(filename) != null){
+                    client.send(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                    return;
+                }
+                List<Integer> selectedDstores = placement.choose(filename, shards);
+                if (selectedDstores.size() < shards){
+                    client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                    return;
+                }
+                entry = new FileIndex.Entry(filename, filesize, dataShards, selectedDstores, client);
+                startStore(entry);
+            } finally {
+                index.lockFor(filename).unlock();
+            }
+
+            client.storeTo(entry.shards);
+            if (DEBUG) logger.info("Sent STORE_TO "+entry.shards+" for "+dataShards+"+"+parityShards+" shards");
+        } catch (Exception e){
+            logger.info("Store failed: "+e);
+        }
+    }
+
+    /**
+     * How many Dstores should hold entry: repFactor, or one per shard if it is erasure-coded.
+     */
+    private int wanted(FileIndex.Entry entry){
+        return entry.isErasureCoded() ? entry.shards.size() : repFactor;
+    }
+
+    /**
+     * Starts storing filename by sending LINK to every live Dstore holding a stored copy with the same hash and size,
+     * if there are enough of them. Their STORE_ACKs complete it like an upload. Must be called holding the file's lock.
+     */
+    private boolean startLink(String filename, long filesize, String hash, ClientWriter client){
+        FileIndex.Entry copy = index.storedCopy(hash, filesize);
+        if (copy == null) {
+            return false;
+        }
+        List<Integer> ports = copy.replicas.stream().filter(dstoreChannels::containsKey).toList();
+        if (ports.size() < repFactor) {
+            return false; //short of replicas, so upload a full set instead
+        }
+        FileIndex.Entry entry = new FileIndex.Entry(filename, filesize, ports, client);
+        entry.hash = hash;
+        entry.linked = true;
+        entry.unlinked = new HashSet<>();
+        startStore(entry);
+        for (int port : ports) {
+            dstoreChannels.get(port).send(Protocol.LINK_TOKEN + " " + copy.filename + " " + filename);
+        }
+        metrics.increment("dedup.links");
+        if (DEBUG) logger.info("Linking "+filename+" to "+copy.filename+" on "+ports);
+        return true;
+    }
+
+    /**
+     * A Dstore could not link, e.g. because the copy was removed in the meantime. The Dstores that did link keep
+     * their links, and the client, which has not been answered yet, uploads to just the ones that could not.
+     */
+    private void handleLINK_FAILED(int port, String filename){
+        index.lockFor(filename).lock();
+        try {
+            FileIndex.Entry entry = index.get(filename);
+            if (entry == null || !entry.linked || entry.state != FileIndex.State.STORE_IN_PROGRESS || entry.client == null
+                    || !entry.replicas.contains(port) || !entry.unlinked.add(port)) {
+                return;
+            }
+            metrics.increment("dedup.fallbacks");
+            uploadUnlinked(entry);
+        } finally {
+            index.lockFor(filename).unlock();
+        }
+    }
+
+    /**
+     * Once every Dstore sent LINK has answered, sends the client STORE_TO with those that could not link, if any.
+     * Must be called holding the file's lock.
+     */
+    private void uploadUnlinked(FileIndex.Entry entry){
+        if (entry.uploading || entry.unlinked.isEmpty() || entry.ackCount() + entry.unlinked.size() < entry.replicas.size()) {
+            return;
+        }
+        entry.uploading = true;
+        entry.client.storeTo(List.copyOf(entry.unlinked));
+        if (DEBUG) logger.info("Sent STORE_TO "+entry.unlinked+" for "+entry.filename+" after failed links");
+    }
+
+    private void handleSTORE_ACK(int port, String filename) {
+        index.lockFor(filename).lock();
+        try {
+            FileIndex.Entry entry = index.get(filename);
+            if (entry == null || entry.state != FileIndex.State.STORE_IN_PROGRESS) {
+                return;
+            }
+            if (DEBUG) logger.info("Handling STORE_ACK" + entry.ackCount());
+            if (entry.linked && entry.unlinked.contains(port) && !entry.uploading) {
+                return; //it could not link, and has not been uploaded to yet, so this ack is stale
+            }
+            if (entry.ack(port)) {
+                index.markStored(entry);
+                entry.deadline.cancel();
+                if (DEBUG) logger.info("Sending STORE_COMPLETE");
+                reply(entry, Protocol.STORE_COMPLETE_TOKEN);
+            }
+        } finally {
+            index.lockFor(filename).unlock();
+        }
+    }
+
+    private void handleLOAD(Socket socket, String filename, ClientWriter client){
+        if (dstorePorts.size() < repFactor){
+            client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        FileIndex.Entry entry = index.get(filename);
+        if (entry == null || entry.state != FileIndex.State.STORED || entry.chunk){
+            client.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return;
+        }
+        if (entry.isErasureCoded()) {
+            loadShards(entry, client);
+            return;
+        }
+        if (entry.isChunked()) {
+            loadChunks(entry, client);
+            return;
+        }
+        List<Integer> ports = entry.replicas.stream().filter(dstorePortsSockets::containsKey).toList();
+
+        if (ports.isEmpty()) {
+            client.send(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+
+        ReplicaSelector.Load load = replicaSelector.begin(ports);
+        canReload.put(socket, load);
+
+        client.loadFrom(load.port, entry.size);
+        if (DEBUG) logger.info("Sending LOAD_FROM");
+
+    }
+
+    /**
+     * Replies LOAD_EC_FROM with every shard that is on a live Dstore, which the client fetches k of at once,
+     * or ERROR_LOAD if fewer than k are. There is no RELOAD: the client has every other shard to fall back on.
+     */
+    private void loadShards(FileIndex.Entry entry, ClientWriter client){
+        List<Integer> replicas = entry.replicas;
+        List<Integer> ports = new ArrayList<>();
+        int live = 0;
+        for (int port : entry.shards) {
+            boolean available = replicas.contains(port) && dstorePortsSockets.containsKey(port);
+            ports.add(available ? port : 0);
+            live += available ? 1 : 0;
+        }
+        if (live < entry.dataShards) {
+            client.send(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        client.loadShardsFrom(entry.size, entry.dataShards, ports);
+        if (DEBUG) logger.info("Sending LOAD_EC_FROM");
+    }
+
+    /**
+     * Replies LOAD_CHUNKS_FROM with the live replicas of every chunk, each list starting at a different one so a
+     * client fetching the first of each spreads its reads over the cluster, or ERROR_LOAD if a chunk has none.
+     * A client that fails to fetch some chunks sends RELOAD for a new map and fetches just those again.
+     */
+    private void loadChunks(FileIndex.Entry entry, ClientWriter client){
+        List<List<Integer>> ports = new ArrayList<>(entry.chunks);
+        for (int i = 0; i < entry.chunks; i++) {
+            FileIndex.Entry chunk = index.get(FileIndex.chunkName(entry.filename, i));
+            List<Integer> live = chunk == null || chunk.state != FileIndex.State.STORED ? List.of()
+                    : new ArrayList<>(chunk.replicas.stream().filter(dstorePortsSockets::containsKey).toList());
+            if (live.isEmpty()) {
+                client.send(Protocol.ERROR_LOAD_TOKEN);
+                return;
+            }
+            Collections.rotate(live, -i);
+            ports.add(live);
+        }
+        client.loadChunksFrom(entry.size, entry.chunkSize, ports);
+        if (DEBUG) logger.info("Sending LOAD_CHUNKS_FROM");
+    }
+
+    private void handleRELOAD(Socket socket, String filename, ClientWriter client) {
+        if (DEBUG) logger.info("Handling RELOAD");
+        ReplicaSelector.Load load = canReload.get(socket);
+        FileIndex.Entry entry = index.get(filename);
+        if (entry != null && entry.state == FileIndex.State.STORED && entry.isChunked()) {
+            loadChunks(entry, client);
+        } else if (load == null) {
+            if (DEBUG) logger.info("Need to load before reload");
+            client.send(Protocol.ERROR_LOAD_TOKEN);
+        } else if (entry == null || entry.state != FileIndex.State.STORED) {
+            endLoad(socket); //removed since the LOAD, which is why the Dstore could not serve it
+            client.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+        } else if (replicaSelector.retry(load, dstorePortsSockets.keySet())){
+            client.loadFrom(load.port, entry.size);
+        } else{
+            endLoad(socket);
+            client.send(Protocol.ERROR_LOAD_TOKEN);
+            if (DEBUG) logger.info("Sending ERROR_LOAD");
+        }
+    }
+
+    private void endLoad(Socket socket){
+        ReplicaSelector.Load load = canReload.remove(socket);
+        if (load != null) {
+            replicaSelector.end(load);
+        }
+    }
+
+    private void handleREMOVE(String filename, ClientWriter client){
+        if (DEBUG) logger.info("I'm removing here");
+        if (dstorePorts.size() < repFactor){
+            client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            if (DEBUG) logger.info("Sending NOT ENOUGH DSTORES");
+            return;
+        }
+
+        FileIndex.Entry entry;
+        index.lockFor(filename).lock();
+        try {
+            entry = index.get(filename);
+            if (entry == null || entry.chunk || !index.beginRemove(entry, client)){
+                client.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                if (DEBUG) logger.info("Sending FILE DOESNT EXIST");
+                return;
+            }
+            if (!entry.isChunked()) {
+                startRemove(entry);
+            }
+        } finally {
+            index.lockFor(filename).unlock();
+        }
+        if (entry.isChunked()) {
+            removeChunks(entry);
+        }
+    }
+
+    /**
+     * Removes every chunk of a chunked file that has just moved to REMOVE_IN_PROGRESS, and completes its remove
+     * once they are all gone. Must be called without the file's lock, see dropChunk. If a chunk's remove fails,
+     * the file is left in REMOVE_IN_PROGRESS for a later rebalance to finish.
+     */
+    private void removeChunks(FileIndex.Entry parent){
+        List<String> names = chunkNames(parent);
+        Batch batch = new Batch(names, outcomes -> Thread.ofVirtual().name("chunks").start(() -> {
+            index.lockFor(parent.filename).lock();
+            try {
+                if (index.get(parent.filename) != parent || parent.state != FileIndex.State.REMOVE_IN_PROGRESS) {
+                    return;
+                }
+                if (outcomes.contains(Protocol.ERROR_INCOMPLETE_TOKEN)) {
+                    fail(parent);
+                } else {
+                    completeRemove(parent);
+                }
+            } finally {
+                index.lockFor(parent.filename).unlock();
+            }
+        }));
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            index.lockFor(name).lock();
+            try {
+                FileIndex.Entry chunk = index.get(name);
+                if (chunk == null) {
+                    batch.settle(i, Protocol.REMOVE_COMPLETE_TOKEN); //lost with its Dstores, or dropped by a rebalance
+                } else if (index.beginRemove(chunk, null)) {
+                    chunk.batch = batch;
+                    chunk.batchIndex = i;
+                    startRemove(chunk);
+                } else {
+                    batch.settle(i, Protocol.ERROR_INCOMPLETE_TOKEN);
+                }
+            } finally {
+                index.lockFor(name).unlock();
+            }
+        }
+        batch.ready();
+    }
+
+    /**
+     * Adds a new store to the index and starts its timeout. Must be called holding the file's lock.
+     */
+    private void startStore(FileIndex.Entry entry){
+        String filename = entry.filename;
+        index.put(entry);
+        entry.deadline = timeouts.schedule(()->{
+            index.lockFor(filename).lock();
+            try {
+                if (index.get(filename) == entry && entry.state == FileIndex.State.STORE_IN_PROGRESS) {
+                    index.remove(filename); // Needs cleanup due to missing acks
+                    fail(entry);
+                    metrics.increment("timeouts.STORE");
+                    logger.info("Timed out store, "+timeouts.timedOut()+" timed out so far");
+                }
+            } finally {
+                index.lockFor(filename).unlock();
+            }
+        }, timeout);
+    }
+
+    /**
+     * Sends REMOVE to every replica of an entry that has just moved to REMOVE_IN_PROGRESS, and starts its timeout.
+     * Must be called holding the file's lock.
+     */
+    private void startRemove(FileIndex.Entry entry){
+        String filename = entry.filename;
+        for (Integer port:entry.replicas) {
+            CommandChannel out = dstoreChannels.get(port);
+            if (out != null) {
+                out.send(Protocol.REMOVE_TOKEN + " " + filename);
+                if (DEBUG) logger.info("Sending REMOVE_TOKEN to Dstore "+port);
+            }
+        }
+        entry.deadline = timeouts.schedule(()->{
+            index.lockFor(filename).lock();
+            try {
+                if (index.get(filename) == entry && entry.state == FileIndex.State.REMOVE_IN_PROGRESS) {
+                    fail(entry); // left in REMOVE_IN_PROGRESS for a later rebalance to clean up
+                    metrics.increment("timeouts.REMOVE");
+                    logger.info("Timed out remove, "+timeouts.timedOut()+" timed out so far");
+                }
+            } finally {
+                index.lockFor(filename).unlock();
+            }
+        }, timeout);
+    }
+
+    /**
+     * STORE_BATCH n (filename filesize)...: places every file at once and replies STORE_BATCH_TO. The client then
+     * uploads each Dstore's share of the files over one connection with STORE_BATCH, and gets STORE_BATCH_COMPLETE
+     * once every file is stored or has failed.
+     */
+    private void handleSTORE_BATCH(List<String> filenames, List<Long> filesizes, ClientWriter client){
+        if (dstorePorts.size() < repFactor){
+            client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        Batch batch = new Batch(Protocol.STORE_BATCH_COMPLETE_TOKEN, client, filenames);
+        List<List<Integer>> storeTo = new ArrayList<>(filenames.size());
+        for (int i = 0; i < filenames.size(); i++) {
+            String filename = filenames.get(i);
+            List<Integer> ports = List.of();
+            index.lockFor(filename).lock();
+            try {
+                List<Integer> selectedDstores;
+                if (index.get(filename) != null) {
+                    batch.settle(i, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                } else if ((selectedDstores = placement.choose(filename, repFactor)).size() < repFactor) {
+                    batch.settle(i, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                } else {
+                    FileIndex.Entry entry = new FileIndex.Entry(filename, filesizes.get(i), selectedDstores, null);
+                    entry.batch = batch;
+                    entry.batchIndex = i;
+                    startStore(entry);
+                    ports = entry.replicas;
+                }
+            } finally {
+                index.lockFor(filename).unlock();
+            }
+            storeTo.add(ports);
+        }
+        client.storeBatchTo(filenames, storeTo);
+        batch.ready();
+        if (DEBUG) logger.info("Sent STORE_BATCH_TO for "+filenames.size()+" files");
+    }
+
+    /**
+     * LOAD_BATCH n filename...: replies LOAD_BATCH_FROM with a replica for each file. Files are gathered on as few
+     * Dstores as their replicas allow, so the client can fetch them with one LOAD_DATA_BATCH per Dstore.
+     */
+    private void handleLOAD_BATCH(List<String> filenames, ClientWriter client){
+        if (dstorePorts.size() < repFactor){
+            client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        int[] ports = new int[filenames.size()];
+        long[] filesizes = new long[filenames.size()];
+        Set<Integer> used = new LinkedHashSet<>();
+        for (int i = 0; i < filenames.size(); i++) {
+            FileIndex.Entry entry = index.get(filenames.get(i));
+            if (entry == null || entry.state != FileIndex.State.STORED || entry.isErasureCoded() || entry.isChunked() || entry.chunk) {
+                continue; //erasure-coded and chunked files are loaded one at a time, from their shards or chunks
+            }
+            List<Integer> live = entry.replicas.stream().filter(dstorePortsSockets::containsKey).toList();
+            if (live.isEmpty()) {
+                continue;
+            }
+            int port = -1;
+            for (int candidate : used) {
+                if (live.contains(candidate)) {
+                    port = candidate;
+                    break;
+                }
+            }
+            if (port == -1) {
+                port = replicaSelector.choose(live);
+                used.add(port);
+            }
+            ports[i] = port;
+            filesizes[i] = entry.size;
+        }
+        client.loadBatchFrom(filenames, ports, filesizes);
+        if (DEBUG) logger.info("Sent LOAD_BATCH_FROM for "+filenames.size()+" files from "+used.size()+" Dstores");
+    }
+
+    /**
+     * REMOVE_BATCH n filename...: removes every file as REMOVE would, and replies REMOVE_BATCH_COMPLETE once each
+     * has been removed or has failed.
+     */
+    private void handleREMOVE_BATCH(List<String> filenames, ClientWriter client){
+        if (dstorePorts.size() < repFactor){
+            client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        Batch batch = new Batch(Protocol.REMOVE_BATCH_COMPLETE_TOKEN, client, filenames);
+        for (int i = 0; i < filenames.size(); i++) {
+            String filename = filenames.get(i);
+            FileIndex.Entry entry;
+            index.lockFor(filename).lock();
+            try {
+                entry = index.get(filename);
+                if (entry == null || entry.chunk || !index.beginRemove(entry, null)) {
+                    batch.settle(i, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                    continue;
+                }
+                entry.batch = batch;
+                entry.batchIndex = i;
+                if (!entry.isChunked()) {
+                    startRemove(entry);
+                }
+            } finally {
+                index.lockFor(filename).unlock();
+            }
+            if (entry.isChunked()) {
+                removeChunks(entry);
+            }
+        }
+        batch.ready();
+        if (DEBUG) logger.info("Removing a batch of "+filenames.size()+" files");
+    }
+
+    /**
+     * Sends the outcome of the operation in progress on entry to the client or batch waiting for it.
+     */
+    private void reply(FileIndex.Entry entry, String outcome){
+        if (!entry.chunk && (entry.client != null || entry.batch != null)) {
+            //from the request to its COMPLETE, as the client sees it apart from the network
+            metrics.record(outcome.equals(Protocol.REMOVE_COMPLETE_TOKEN) ? "REMOVE.complete" : "STORE.complete", entry.started);
+        }
+        if (entry.client != null) {
+            entry.client.send(outcome);
+        }
+        if (entry.batch != null) {
+            entry.batch.settle(entry.batchIndex, outcome);
+        }
+        entry.client = null;
+        entry.batch = null;
+    }
+
+    /**
+     * Gives up on the operation in progress on entry. A single client gets no reply and times out itself, as in
+     * the coursework protocol; a batch records the file as ERROR_INCOMPLETE.
+     */
+    private void fail(FileIndex.Entry entry){
+        if (entry.batch != null) {
+            entry.batch.settle(entry.batchIndex, Protocol.ERROR_INCOMPLETE_TOKEN);
+        }
+        entry.client = null;
+        entry.batch = null;
+    }
+
+    private void handleREMOVE_ACK(int port, String filename) {
+        index.lockFor(filename).lock();
+        try {
+            FileIndex.Entry entry = index.get(filename);
+            if (entry == null || entry.state != FileIndex.State.REMOVE_IN_PROGRESS) {
+                if (DEBUG) logger.info("No remove in progress for "+filename);
+                return;
+            }
+            if (DEBUG) logger.info("Handling REMOVE_ACK" + entry.ackCount());
+            if (entry.ack(port)) {
+                completeRemove(entry);
+            }
+        } finally {
+            index.lockFor(filename).unlock();
+        }
+    }
+
+    private void completeRemove(FileIndex.Entry entry) {
+        index.remove(entry.filename);
+        if (DEBUG) logger.info("Sending REMOVE_COMPLETE");
+        reply(entry, Protocol.REMOVE_COMPLETE_TOKEN);
+    }
+
+    /**
+     * Hands a LIST or LIST_DELTA reply to the rebalance waiting for it.
+     */
+    private void handleDstoreLIST(int port, String input){
+        CompletableFuture<String> reply = pendingLists.remove(port);
+        if (reply != null) {
+            reply.complete(input);
+        }
+    }
+
+    private void handleREBALANCE_COMPLETE(int port){
+        CompletableFuture<Void> done = pendingRebalances.remove(port);
+        if (done != null) {
+            done.complete(null);
+        }
+    }
+
+    /**
+     * Asks every Dstore what it holds, plans the fewest transfers that restore repFactor replicas of each stored
+     * file and even out the file counts, and sends each Dstore its part of the plan. Files are only moved while
+     * STORED, and no lock is held while waiting for Dstores, so client requests carry on throughout.
+     */
+    private void rebalance() throws InterruptedException {
+        if (dstorePorts.size() < repFactor || !rebalancing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            //taken before asking for lists, so every stored file in it is already on disk at its replicas
+            List<FileIndex.Entry> settled = new ArrayList<>();
+            for (FileIndex.Entry entry : index.entries()) {
+                if (entry.state != FileIndex.State.STORE_IN_PROGRESS) {
+                    settled.add(entry);
+                }
+            }
+            Map<Integer, Set<String>> holdings = collectLists();
+            if (holdings.size() < repFactor) {
+                logger.info("Skipping rebalance, only "+holdings.size()+" Dstores listed their files");
+                return;
+            }
+
+            Set<String> storedNames = syncReplicas(settled, holdings);
+            Set<String> keep = new HashSet<>(); //stores that started or finished since, and erasure-coded files, left where they are
+            for (FileIndex.Entry entry : index.entries()) {
+                if (entry.state != FileIndex.State.REMOVE_IN_PROGRESS && !storedNames.contains(entry.filename)) {
+                    keep.add(entry.filename);
+                }
+            }
+
+            Map<Integer, Integer> weights = new HashMap<>();
+            for (int port : holdings.keySet()) {
+                weights.put(port, placement.weight(port));
+            }
+            RebalancePlanner.Plan plan = placement instanceof ConsistentHashPlacement ring
+                    ? RebalancePlanner.toOwners(holdings, storedNames, keep, file -> ring.owners(file, repFactor, holdings.keySet()))
+                    : RebalancePlanner.plan(holdings, weights, storedNames, keep, repFactor);
+            if (plan.isEmpty()) {
+                return;
+            }
+            logger.info("Rebalanced "+runPlan(plan)+" Dstores");
+        } finally {
+            rebalancing.set(false);
+        }
+    }
+
+    /**
+     * Copies the files queued in repairs from their surviving replicas to other Dstores, planned from the index
+     * alone so no LIST round is needed, and has the missing shards of erasure-coded files rebuilt. Files whose
+     * repairs do not complete in time are left to the next rebalance.
+     */
+    private void repair() throws InterruptedException {
+        if (!rebalancing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Map<String, List<Integer>> holders = new TreeMap<>();
+            List<FileIndex.Entry> degraded = new ArrayList<>();
+            for (Iterator<String> files = repairs.iterator(); files.hasNext(); ) {
+                String file = files.next();
+                files.remove();
+                FileIndex.Entry entry = index.get(file);
+                if (entry == null || entry.state != FileIndex.State.STORED || entry.replicas.size() >= wanted(entry)) {
+                    continue;
+                }
+                if (entry.isErasureCoded()) {
+                    degraded.add(entry);
+                } else {
+                    holders.put(file, entry.replicas);
+                }
+            }
+            Map<Integer, Integer> counts = new HashMap<>();
+            Map<Integer, Integer> weights = new HashMap<>();
+            for (int port : dstoreChannels.keySet()) {
+                counts.put(port, index.filesOn(port).size());
+                weights.put(port, placement.weight(port));
+            }
+            int rebuilt = degraded.isEmpty() ? 0 : rebuild(degraded, counts, weights);
+            if (rebuilt > 0) {
+                logger.info("Rebuilt "+rebuilt+" shards");
+            }
+            RebalancePlanner.Plan plan;
+            if (placement instanceof ConsistentHashPlacement ring) {
+                //straight to the files' new owners, so the next rebalance has nothing to move
+                Map<Integer, List<String>> holdings = new HashMap<>();
+                for (Map.Entry<String, List<Integer>> file : holders.entrySet()) {
+                    for (int port : file.getValue()) {
+                        holdings.computeIfAbsent(port, k -> new ArrayList<>()).add(file.getKey());
+                    }
+                }
+                Set<Integer> live = Set.copyOf(dstoreChannels.keySet());
+                plan = RebalancePlanner.toOwners(holdings, holders.keySet(), Set.of(), file -> ring.owners(file, repFactor, live));
+            } else {
+                plan = RebalancePlanner.repair(holders, counts, weights, repFactor);
+            }
+            if (plan.isEmpty()) {
+                return;
+            }
+            metrics.add("repaired.files", holders.size());
+            logger.info("Re-replicated "+holders.size()+" files from "+runPlan(plan)+" Dstores");
+        } finally {
+            rebalancing.set(false);
+        }
+    }
+
+    /**
+     * Sends REBUILD filename shard filesize k port... for each missing shard of the given erasure-coded files to the
+     * least loaded live Dstore that holds no shard of that file, and waits up to the timeout for their REBUILD_ACKs.
+     * counts is updated with the shards given out. Returns how many shards were rebuilt in time.
+     */
+    private int rebuild(List<FileIndex.Entry> degraded, Map<Integer, Integer> counts, Map<Integer, Integer> weights) throws InterruptedException {
+        List<CompletableFuture<Void>> rebuilds = new ArrayList<>();
+        for (FileIndex.Entry entry : degraded) {
+            List<Integer> shards = entry.shards;
+            List<Integer> replicas = entry.replicas;
+            StringBuilder sources = new StringBuilder();
+            int live = 0;
+            for (int port : shards) {
+                boolean available = replicas.contains(port) && dstoreChannels.containsKey(port);
+                sources.append(' ').append(available ? port : 0);
+                live += available ? 1 : 0;
+            }
+            if (live < entry.dataShards) {
+                logger.info("Cannot rebuild "+entry.filename+", only "+live+" of its shards are available");
+                continue;
+            }
+            Set<Integer> taken = new HashSet<>(shards);
+            for (int shard = 0; shard < shards.size(); shard++) {
+                if (replicas.contains(shards.get(shard))) {
+                    continue;
+                }
+                Integer target = null;
+                for (int port : counts.keySet()) {
+                    if (!taken.contains(port) && (target == null
+                            || (long) counts.get(port) * weights.get(target) < (long) counts.get(target) * weights.get(port))) {
+                        target = port;
+                    }
+                }
+                CommandChannel out = target == null ? null : dstoreChannels.get(target);
+                if (out == null) {
+                    break; //every live Dstore already holds a shard
+                }
+                taken.add(target);
+                counts.merge(target, 1, Integer::sum);
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                pendingRebuilds.put(entry.filename + " " + shard, done);
+                rebuilds.add(done);
+                out.send(Protocol.REBUILD_TOKEN + " " + entry.filename + " " + shard + " " + entry.size + " " + entry.dataShards + sources);
+            }
+        }
+        awaitAll(rebuilds);
+        pendingRebuilds.values().removeAll(rebuilds);
+        int rebuilt = 0;
+        for (CompletableFuture<Void> done : rebuilds) {
+            rebuilt += done.isDone() ? 1 : 0;
+        }
+        metrics.add("rebuilt.shards", rebuilt);
+        return rebuilt;
+    }
+
+    /**
+     * Records that port now holds the given shard, unless the file has changed since the REBUILD was sent.
+     */
+    private void handleREBUILD_ACK(int port, String filename, int shard){
+        index.lockFor(filename).lock();
+        try {
+            FileIndex.Entry entry = index.get(filename);
+            if (entry != null && entry.isErasureCoded() && entry.state == FileIndex.State.STORED && shard < entry.shards.size()
+                    && !entry.replicas.contains(entry.shards.get(shard)) && !entry.shards.contains(port)) {
+                index.setShard(entry, shard, port);
+            }
+        } finally {
+            index.lockFor(filename).unlock();
+        }
+        CompletableFuture<Void> done = pendingRebuilds.remove(filename + " " + shard);
+        if (done != null) {
+            done.complete(null);
+        }
+    }
+
+    /**
+     * Sends each Dstore its part of plan, waits up to the timeout for their REBALANCE_COMPLETEs and records what
+     * the Dstores that completed did. Returns how many Dstores were sent a part.
+     */
+    private int runPlan(RebalancePlanner.Plan plan) throws InterruptedException {
+        Map<Integer, CompletableFuture<Void>> completions = new TreeMap<>();
+        for (int port : plan.dstores()) {
+            CommandChannel out = dstoreChannels.get(port);
+            if (out == null) {
+                continue;
+            }
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            pendingRebalances.put(port, done);
+            completions.put(port, done);
+            String message = plan.messageFor(port);
+            out.send(message);
+            if (DEBUG) logger.info("Sending "+message+" to Dstore "+port);
+        }
+        awaitAll(completions.values());
+        for (Map.Entry<Integer, CompletableFuture<Void>> completion : completions.entrySet()) {
+            pendingRebalances.remove(completion.getKey(), completion.getValue());
+            if (completion.getValue().isDone()) {
+                applyRebalance(completion.getKey(), plan);
+            }
+        }
+        return completions.size();
+    }
+
+    /**
+     * Asks every Dstore for its files and returns the replies that arrive within the timeout. With listDelta, a
+     * Dstore that has already given a full LIST on its current connection is only asked for what has changed.
+     */
+    private Map<Integer, Set<String>> collectLists() throws InterruptedException {
+        Map<Integer, CompletableFuture<String>> replies = new TreeMap<>();
+        for (Map.Entry<Integer, CommandChannel> dstore : dstoreChannels.entrySet()) {
+            CompletableFuture<String> reply = new CompletableFuture<>();
+            pendingLists.put(dstore.getKey(), reply);
+            replies.put(dstore.getKey(), reply);
+            boolean delta = listDelta && dstoreFiles.containsKey(dstore.getKey());
+            dstore.getValue().send(delta ? Protocol.LIST_DELTA_TOKEN : Protocol.LIST_TOKEN);
+        }
+        awaitAll(replies.values());
+
+        Map<Integer, Set<String>> holdings = new TreeMap<>();
+        for (Map.Entry<Integer, CompletableFuture<String>> reply : replies.entrySet()) {
+            int port = reply.getKey();
+            pendingLists.remove(port, reply.getValue());
+            if (!reply.getValue().isDone()) {
+                dstoreFiles.remove(port); //it may still send the reply, so its changes since are unknown
+                continue;
+            }
+            String[] parts = reply.getValue().join().split(" ");
+            Set<String> files;
+            if (parts[0].equals(Protocol.LIST_DELTA_TOKEN)) {
+                files = dstoreFiles.get(port);
+                if (files == null) {
+                    continue;
+                }
+                for (int i = 1; i < parts.length; i++) {
+                    if (parts[i].startsWith("+")) {
+                        files.add(parts[i].substring(1));
+                    } else {
+                        files.remove(parts[i].substring(1));
+                    }
+                }
+            } else {
+                files = new HashSet<>(Arrays.asList(parts).subList(1, parts.length));
+                if (listDelta) {
+                    dstoreFiles.put(port, files);
+                }
+            }
+            holdings.put(port, files);
+        }
+        return holdings;
+    }
+
+    private void awaitAll(Collection<? extends CompletableFuture<?>> futures) throws InterruptedException {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e){
+            logger.info("Not every Dstore replied in time");
+        }
+    }
+
+    /**
+     * Makes the replicas of each entry still STORED or REMOVE_IN_PROGRESS match the Dstores that actually listed
+     * it, keeping any replica on a Dstore that did not reply. Stored files no Dstore holds any more are dropped,
+     * and removes whose remaining replicas have all acked or lost the file are completed. Returns the names of
+     * the replicated entries that are still STORED; erasure-coded ones are left where they are, and queued for
+     * repair if a shard is missing.
+     */
+    private Set<String> syncReplicas(List<FileIndex.Entry> settled, Map<Integer, Set<String>> listed){
+        Set<String> names = new HashSet<>();
+        for (FileIndex.Entry entry : settled) {
+            String file = entry.filename;
+            index.lockFor(file).lock();
+            try {
+                if (index.get(file) != entry || entry.state == FileIndex.State.STORE_IN_PROGRESS) {
+                    continue;
+                }
+                if (entry.isChunked()) {
+                    //holds no data itself; its chunks are synced as files of their own
+                    if (entry.state == FileIndex.State.REMOVE_IN_PROGRESS && chunkNames(entry).stream().allMatch(name -> index.get(name) == null)) {
+                        completeRemove(entry);
+                    }
+                    continue;
+                }
+                if (entry.chunk && entry.state == FileIndex.State.STORED) {
+                    FileIndex.Entry parent = index.get(FileIndex.parentOf(file));
+                    if (parent == null || !parent.isChunked() || parent.state == FileIndex.State.REMOVE_IN_PROGRESS) {
+                        index.remove(file); //left behind by a store or remove cut short, so deleted from its Dstores below
+                        logger.info("Dropped "+file+", its file is not stored");
+                        continue;
+                    }
+                }
+                List<Integer> ports = new ArrayList<>();
+                for (int port : entry.replicas) {
+                    if (!listed.containsKey(port)) {
+                        ports.add(port);
+                    }
+                }
+                for (Map.Entry<Integer, Set<String>> dstore : listed.entrySet()) {
+                    if (dstore.getValue().contains(file)) {
+                        ports.add(dstore.getKey());
+                    }
+                }
+                if (entry.state == FileIndex.State.REMOVE_IN_PROGRESS) {
+                    index.setReplicas(entry, ports);
+                    if (entry.isAcked()) {
+                        completeRemove(entry);
+                    }
+                    continue;
+                }
+                if (ports.isEmpty()) {
+                    index.remove(file);
+                    logger.info("Dropped "+file+", no Dstore holds it");
+                    continue;
+                }
+                index.setReplicas(entry, ports);
+                if (entry.isErasureCoded()) {
+                    if (entry.replicas.size() < entry.shards.size()) {
+                        repairs.add(file); //rebuilt rather than copied, so left out of the plan
+                    }
+                    continue;
+                }
+                names.add(file);
+            } finally {
+                index.lockFor(file).unlock();
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Records the transfers and deletions port reported complete. Entries changed by a client in the meantime
+     * are left for the next rebalance to reconcile.
+     */
+    private void applyRebalance(int port, RebalancePlanner.Plan plan){
+        for (Map.Entry<String, List<Integer>> send : plan.sends.getOrDefault(port, Map.of()).entrySet()) {
+            String file = send.getKey();
+            index.lockFor(file).lock();
+            try {
+                FileIndex.Entry entry = index.get(file);
+                if (entry != null && entry.state == FileIndex.State.STORED) {
+                    List<Integer> ports = new ArrayList<>(entry.replicas);
+                    for (int target : send.getValue()) {
+                        if (!ports.contains(target) && dstorePortsSockets.containsKey(target)) {
+                            ports.add(target);
+                        }
+                    }
+                    index.setReplicas(entry, ports);
+                }
+            } finally {
+                index.lockFor(file).unlock();
+            }
+        }
+        for (String file : plan.removes.getOrDefault(port, Set.of())) {
+            index.lockFor(file).lock();
+            try {
+                FileIndex.Entry entry = index.get(file);
+                if (entry == null || entry.state == FileIndex.State.STORE_IN_PROGRESS) {
+                    continue;
+                }
+                List<Integer> ports = new ArrayList<>(entry.replicas);
+                ports.remove(Integer.valueOf(port));
+                index.setReplicas(entry, ports);
+                if (entry.state == FileIndex.State.REMOVE_IN_PROGRESS && entry.isAcked()) {
+                    completeRemove(entry);
+                }
+            } finally {
+                index.lockFor(file).unlock();
+            }
+        }
+    }
+
+    private void handleLIST(ClientWriter client){
+
+        if (dstorePorts.size() < repFactor){
+            client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+        client.list(index.storedNames()); //written out as it is read, with the index open to writers throughout
+        if (DEBUG) logger.info("Listed files");
+    }
+
+    /**
+     * Replies with more or end and then, in name order, up to limit stored files that start with prefix and come
+     * after the cursor, which is empty for the first page. After more, the client asks again with the last name
+     * it got as the cursor.
+     */
+    private void handleLIST_PAGE(String prefix, String after, int limit, ClientWriter client){
+
+        if (dstorePorts.size() < repFactor){
+            client.send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        limit = limit <= 0 ? DEFAULT_PAGE : Math.min(limit, MAX_PAGE);
+        NavigableSet<String> names = index.storedNames();
+        Iterator<String> from = (after.compareTo(prefix) >= 0 ? names.tailSet(after, false) : names.tailSet(prefix, true)).iterator();
+        List<String> page = new ArrayList<>();
+        boolean more = false;
+        while (from.hasNext()) {
+            String filename = from.next();
+            if (!filename.startsWith(prefix)) {
+                break;
+            }
+            if (page.size() == limit) {
+                more = true;
+                break;
+            }
+            page.add(filename);
+        }
+        client.listPage(more, page);
+        if (DEBUG) logger.info("Listed a page of "+page.size()+" files");
+    }
+}
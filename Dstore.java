@@ -1,226 +1,827 @@
-import java.io.*;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.logging.Logger;
-
-public class Dstore {
-    private static final Logger logger = Logger.getLogger(Controller.class.getName());
-
-    private final int port;
-    private final int cport; //controller port
-    private final int timeout; //milliseconds
-    private final String fileFolder;
-    private Socket cSocket; //controller socket
-    private PrintWriter cWriter; //controller writer
-    private BufferedReader cReader; //controller reader
-    private final HashMap<String,Integer> fileSizes;
-
-    public Dstore(int port, int cport, int timeout, String fileFolder){
-        this.port = port;
-        this.cport = cport;
-        this.timeout = timeout;
-        this.fileFolder = fileFolder;
-
-        this.fileSizes = new HashMap<>();
-    }
-
-    public static void main(String[] args){
-        if (args.length != 4){
-            System.out.println("Invalid arguments");
-            return;
-        }
-
-        int port = Integer.parseInt(args[0]);
-        int cport = Integer.parseInt(args[1]);
-        int timeout = Integer.parseInt(args[2]);
-        String fileFolder = args[3];
-
-        Dstore dstore = new Dstore(port,cport,timeout,fileFolder);
-        dstore.start();
-    }
-
-    public void start(){
-        while (true){
-            try{
-                Socket socket = new Socket(InetAddress.getLocalHost(), cport);
-                PrintWriter writer = new PrintWriter(socket.getOutputStream());
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                writer.println("JOIN "+port);
-                writer.flush();
-                logger.info("Sending JOIN");
-
-                cSocket = socket;
-                cWriter = writer;
-                cReader = reader;
-
-                break;
-            } catch (Exception e){
-                //cWriter.println(Protocol.ERROR_LOAD_TOKEN);
-            }
-        }
-        new Thread(this::requestsFromController).start();
-        new Thread(this::requestsFromClient).start();
-    }
-
-    public void requestsFromController() {
-
-        while (true) {
-
-            try {
-                String input = cReader.readLine();
-                new Thread(() -> handleControllerRequests(cSocket,input)).start();
-            } catch (IOException ignored) {
-
-            }
-
-        }
-    }
-
-    public void requestsFromClient() {
-
-        while (true) {
-
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                while (true) {
-                    Socket socket = serverSocket.accept();
-                    new Thread(() -> handleClientRequests(socket)).start();
-                }
-
-            } catch (IOException ignored) {
-
-            }
-
-        }
-    }
-
-    private void handleControllerRequests(Socket socket, String input){
-        if (input.startsWith(Protocol.REMOVE_TOKEN)) {
-            logger.info("Received REMOVE");
-            new Thread(()->handleREMOVE(input)).start();
-        } else if (input.startsWith(Protocol.LIST_TOKEN)) {
-
-            new Thread(this::handleLIST).start();
-        } else if (input.startsWith(Protocol.REBALANCE_TOKEN)) {
-
-            //new Thread(()->handleREBALANCE(input)).start();
-        } else {
-            //break;
-        }
-
-    }
-
-    private void handleClientRequests(Socket socket){
-        try {
-            InputStream input = socket.getInputStream();
-            OutputStream output = socket.getOutputStream();
-            BufferedReader inReader = new BufferedReader(new InputStreamReader(input));
-
-            String line = inReader.readLine();
-            //DstoreLogger.getInstance().messageReceived(socket, sentence);
-            if (line.startsWith(Protocol.STORE_TOKEN)) {
-                logger.info("Received STORE");
-                new Thread(()->handleSTORE(socket, input, output, line)).start();
-            } else if (line.startsWith(Protocol.LOAD_DATA_TOKEN)) {
-                logger.info("Received LOAD_DATA");
-                new Thread(()->handleLOAD_DATA(socket, input, output, line)).start();
-            } else if (line.startsWith(Protocol.REBALANCE_STORE_TOKEN)) {
-
-                //new Thread(()->handleREBALANCE_STORE(socket, input, output, line)).start();
-            } else  if (line.startsWith(Protocol.REMOVE_TOKEN)) {
-                logger.info("Received REMOVE FROM CLIENT!?!?!?!??!?!");
-                new Thread(()->handleREMOVE(line)).start();
-            } else {
-                //break;
-            }
-
-        } catch (Exception ignored) {
-        }
-
-    }
-
-    private void handleREMOVE(String input) {
-        if (input.split(" ").length == 2){
-            String filename = input.split(" ")[1];
-            File file = new File(fileFolder, filename);
-            if (file.exists()){
-                file.delete();
-                synchronized (cWriter){
-                    cWriter.println(Protocol.REMOVE_ACK_TOKEN + " " + filename);
-                    cWriter.flush();
-                    logger.info("Sending REMOVE_ACK");
-                }
-            } else{
-                synchronized (cWriter) {
-                    cWriter.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename);
-                    cWriter.flush();
-                }
-            }
-
-        }
-    }
-
-    private void handleLIST() {
-        File file = new File(fileFolder);
-        String[] fileList = file.list();
-        if (fileList!=null){
-            String output = Protocol.LIST_TOKEN;
-            for (String f:fileList) {
-                output = output + " " + f;
-            }
-            synchronized (cWriter){
-                cWriter.println(output);
-                cWriter.flush();
-                logger.info("Listed "+output);
-            }
-        }
-    }
-
-    private void handleSTORE(Socket socket, InputStream input, OutputStream output, String line) {
-        if (line.split(" ").length == 3){
-            String filename = line.split(" ")[1];
-            int filesize = Integer.parseInt(line.split(" ")[2]);
-
-            try (PrintWriter writer = new PrintWriter(output)){
-                writer.println(Protocol.ACK_TOKEN);
-                writer.flush();
-                logger.info("Sending ACK");
-
-                fileSizes.put(filename, filesize);
-
-                byte[] data = socket.getInputStream().readNBytes(filesize);
-                Files.write(new File(fileFolder, filename).toPath(),data);
-                synchronized (cWriter){
-                    cWriter.println(Protocol.STORE_ACK_TOKEN+ " " + filename);
-                    cWriter.flush();
-                    logger.info("Sending STORE_ACK "+filename);
-                }
-
-            } catch (Exception ignored){
-
-            }
-        }
-    }
-
-    private void handleLOAD_DATA(Socket socket, InputStream input, OutputStream output, String line) {
-        if (line.split(" ").length == 2){
-            String filename = line.split(" ")[1];
-            File file = new File(fileFolder, filename);
-            try (PrintWriter writer = new PrintWriter(output); FileInputStream fileInputStream = new FileInputStream(file)){
-
-                if (file.exists()){
-                    byte[] bytes = new byte[1024];
-                    int temp;
-                    while ((temp = fileInputStream.read(bytes)) != -1){
-                        output.write(bytes,0,temp);
-                    }
-                }
-            } catch (Exception ignored){
-
-            }
-        }
-    }
-}
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+public class Dstore {
+    private static final Logger logger = Logger.getLogger(Controller.class.getName());
+    private static final boolean DEBUG = Boolean.getBoolean("debug"); //log every message; constant, so free when off
+    private static final String INCOMING_FOLDER = ".incoming"; //partial uploads, renamed into fileFolder when complete
+
+    /**
+     * How far a stored file is forced to disk before its STORE_ACK is sent, from the "dstore.fsync" property:
+     * NONE leaves it to the OS, DATA forces the file contents, FULL also forces metadata and the directory entry.
+     */
+    enum Fsync { NONE, DATA, FULL }
+
+    private final int port;
+    private final int cport; //controller port
+    private final int timeout; //milliseconds
+    private final String fileFolder;
+    private volatile Socket cSocket; //controller socket
+    private volatile PrintWriter cWriter; //controller writer
+    private volatile BufferedReader cReader; //controller reader
+    private final Map<String,Long> fileSizes; //inventory of fileFolder, scanned once at startup
+    private final Map<String,Boolean> changes; //files added (true) or removed (false) since the last LIST
+    private final ReentrantLock controllerLock; //keeps each message to the Controller in one piece
+    private final ExecutorService connections;
+    private final Path incomingFolder;
+    private final Fsync fsync;
+    private final AtomicLong uploads;
+    private final ReadCache cache; //null unless dstore.cache.bytes is set
+    private final Metrics metrics;
+
+    public Dstore(int port, int cport, int timeout, String fileFolder){
+        this.port = port;
+        this.cport = cport;
+        this.timeout = timeout;
+        this.fileFolder = fileFolder;
+
+        this.fileSizes = new ConcurrentHashMap<>();
+        this.changes = new ConcurrentHashMap<>();
+        this.controllerLock = new ReentrantLock();
+        this.connections = ExecutionModel.forConnections("dstore");
+        this.incomingFolder = Path.of(fileFolder, INCOMING_FOLDER);
+        this.fsync = Fsync.valueOf(System.getProperty("dstore.fsync", "none").toUpperCase(Locale.ROOT));
+        this.uploads = new AtomicLong();
+        long cacheBytes = Long.getLong("dstore.cache.bytes", 0);
+        this.cache = cacheBytes > 0 ? new ReadCache(cacheBytes, Long.getLong("dstore.cache.maxFile", 1024 * 1024)) : null;
+        this.metrics = new Metrics();
+    }
+
+    public static void main(String[] args){
+        if (args.length != 4){
+            System.out.println("Invalid arguments");
+            return;
+        }
+
+        int port = Integer.parseInt(args[0]);
+        int cport = Integer.parseInt(args[1]);
+        int timeout = Integer.parseInt(args[2]);
+        String fileFolder = args[3];
+
+        Dstore dstore = new Dstore(port,cport,timeout,fileFolder);
+        dstore.start();
+    }
+
+    public void start(){
+        try {
+            Files.createDirectories(incomingFolder);
+            try (var leftovers = Files.newDirectoryStream(incomingFolder)) {
+                for (Path partial : leftovers) {
+                    Files.delete(partial); //uploads interrupted by a previous shutdown
+                }
+            }
+            try (var stored = Files.newDirectoryStream(Path.of(fileFolder))) {
+                for (Path file : stored) {
+                    if (!file.getFileName().toString().equals(INCOMING_FOLDER)) {
+                        fileSizes.put(file.getFileName().toString(), Files.size(file));
+                    }
+                }
+            }
+            logger.info("Inventory holds "+fileSizes.size()+" files");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (cache != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(cache, new ObjectName("Dstore:type=ReadCache,port=" + port));
+            } catch (Exception e) {
+                logger.info("Could not publish read cache counters: "+e);
+            }
+        }
+        metrics.gauge("files", fileSizes::size);
+        metrics.register("Dstore:type=Metrics,port=" + port);
+        connectToController();
+        new Thread(this::requestsFromController).start();
+        new Thread(this::requestsFromClient).start();
+    }
+
+    /**
+     * Connects and sends JOIN, retrying until the Controller is up.
+     */
+    private void connectToController(){
+        while (true){
+            try{
+                Socket socket = new Socket(InetAddress.getLocalHost(), cport);
+                PrintWriter writer = new PrintWriter(socket.getOutputStream());
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                String weight = System.getProperty("dstore.weight"); //capacity relative to other Dstores
+                writer.println("JOIN "+port+(weight != null ? " "+weight : ""));
+                writer.flush();
+                logger.info("Sending JOIN");
+
+                cSocket = socket;
+                cWriter = writer;
+                cReader = reader;
+
+                break;
+            } catch (Exception e){
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void requestsFromController() {
+
+        while (true) {
+
+            try {
+                String input = cReader.readLine();
+                if (input == null) {
+                    throw new EOFException();
+                }
+                handleControllerRequests(cSocket,input);
+            } catch (IOException e) {
+                //the Controller restarted or failed; join again so it can reconcile what this Dstore holds
+                logger.info("Controller connection lost, rejoining: "+e);
+                try {
+                    cSocket.close();
+                } catch (IOException ignored) {
+
+                }
+                connectToController();
+            }
+
+        }
+    }
+
+    public void requestsFromClient() {
+
+        while (true) {
+
+            //accepting through a channel gives each socket a SocketChannel, which LOAD_DATA sends files to directly
+            try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+                serverSocket.bind(new InetSocketAddress(port));
+                while (true) {
+                    Socket socket = serverSocket.accept().socket();
+                    connections.execute(() -> handleClientRequests(socket));
+                }
+
+            } catch (IOException ignored) {
+
+            }
+
+        }
+    }
+
+    private void handleControllerRequests(Socket socket, String input){
+        switch (input.split(" ", 2)[0]) {
+            case Protocol.REMOVE_TOKEN -> {
+                if (DEBUG) logger.info("Received REMOVE");
+                handleREMOVE(input);
+            }
+            case Protocol.LIST_DELTA_TOKEN -> {
+                if (DEBUG) logger.info("Received LIST_DELTA");
+                handleLIST_DELTA();
+            }
+            case Protocol.LIST_TOKEN -> handleLIST();
+            case Protocol.HEARTBEAT_TOKEN -> sendToController(Protocol.HEARTBEAT_ACK_TOKEN);
+            case Protocol.LINK_TOKEN -> {
+                if (DEBUG) logger.info("Received LINK");
+                handleLINK(input);
+            }
+            case Protocol.REBUILD_TOKEN -> {
+                if (DEBUG) logger.info("Received REBUILD");
+                //fetches from other Dstores, so keep reading meanwhile. Not on the connection pool: a full pool would
+                //park this thread, the only one reading the Controller, and heartbeats would go unanswered
+                Thread.ofVirtual().name("rebuild").start(() -> handleREBUILD(input));
+            }
+            case Protocol.REBALANCE_TOKEN -> {
+                if (DEBUG) logger.info("Received REBALANCE");
+                Thread.ofVirtual().name("rebalance").start(() -> handleREBALANCE(input)); //waits on transfers, so keep reading REMOVEs meanwhile
+            }
+            default -> {
+                //break;
+            }
+        }
+
+    }
+
+    private void handleClientRequests(Socket socket){
+        try (socket) {
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            BufferedReader inReader = new BufferedReader(new InputStreamReader(input));
+
+            String line = inReader.readLine();
+            long start = System.nanoTime();
+            //DstoreLogger.getInstance().messageReceived(socket, sentence);
+            String token = line.split(" ", 2)[0];
+            switch (token) {
+                case Protocol.STORE_PIPELINE_TOKEN -> {
+                    if (DEBUG) logger.info("Received STORE_PIPELINE");
+                    handleSTORE_PIPELINE(socket, output, line);
+                }
+                case Protocol.STORE_TOKEN -> {
+                    if (DEBUG) logger.info("Received STORE");
+                    handleSTORE(socket, input, output, line);
+                }
+                case Protocol.STORE_BATCH_TOKEN -> {
+                    if (DEBUG) logger.info("Received STORE_BATCH");
+                    handleSTORE_BATCH(socket, output, line);
+                }
+                case Protocol.LOAD_DATA_BATCH_TOKEN -> {
+                    if (DEBUG) logger.info("Received LOAD_DATA_BATCH");
+                    handleLOAD_DATA_BATCH(socket, line);
+                }
+                case Protocol.LOAD_DATA_TOKEN -> {
+                    if (DEBUG) logger.info("Received LOAD_DATA");
+                    handleLOAD_DATA(socket, input, output, line);
+                }
+                case Protocol.REBALANCE_STORE_TOKEN -> {
+                    if (DEBUG) logger.info("Received REBALANCE_STORE");
+                    handleREBALANCE_STORE(socket, output, line);
+                }
+                case Protocol.REMOVE_TOKEN -> {
+                    if (DEBUG) logger.info("Received REMOVE from a client connection");
+                    handleREMOVE(line);
+                }
+                default -> {
+                    return;
+                }
+            }
+            metrics.record(token, start);
+
+        } catch (Exception ignored) {
+        }
+
+    }
+
+    /**
+     * Messages from concurrent connections never interleave, including LIST replies written in pieces.
+     */
+    private void sendToController(String message){
+        controllerLock.lock();
+        try {
+            cWriter.println(message);
+            cWriter.flush();
+        } finally {
+            controllerLock.unlock();
+        }
+    }
+
+    private void added(String filename, long filesize){
+        fileSizes.put(filename, filesize);
+        changes.put(filename, true);
+    }
+
+    private void removed(String filename){
+        fileSizes.remove(filename);
+        changes.put(filename, false);
+    }
+
+    private void handleREMOVE(String input) {
+        String[] parts = input.split(" ");
+        if (parts.length == 2){
+            String filename = parts[1];
+            File file = new File(fileFolder, filename);
+            if (file.exists()){
+                file.delete();
+                removed(filename);
+                invalidate(filename);
+                sendToController(Protocol.REMOVE_ACK_TOKEN + " " + filename);
+                if (DEBUG) logger.info("Sending REMOVE_ACK");
+            } else{
+                sendToController(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename);
+            }
+
+        }
+    }
+
+    /**
+     * LINK source filename: stores filename as a hard link to source, which the Controller knows has the same content,
+     * and acks it like an upload. Removing either name later leaves the other intact. Sends LINK_FAILED if source is
+     * gone or the file system cannot link, so the Controller can have the client upload instead.
+     */
+    private void handleLINK(String input){
+        String[] parts = input.split(" ");
+        if (parts.length != 3) {
+            return;
+        }
+        String filename = parts[2];
+        try {
+            Path target = Path.of(fileFolder, filename);
+            Files.createLink(target, Path.of(fileFolder, parts[1]));
+            invalidate(filename);
+            if (fsync == Fsync.FULL) {
+                try (FileChannel folder = FileChannel.open(Path.of(fileFolder), StandardOpenOption.READ)) {
+                    folder.force(true);
+                }
+            }
+            added(filename, Files.size(target));
+            sendToController(Protocol.STORE_ACK_TOKEN + " " + filename);
+            if (DEBUG) logger.info("Linked "+filename+" to "+parts[1]);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.info("Link of "+filename+" failed: "+e);
+            sendToController(Protocol.LINK_FAILED_TOKEN + " " + filename);
+        }
+    }
+
+    private void invalidate(String filename){
+        if (cache != null) {
+            cache.invalidate(filename);
+        }
+    }
+
+    /**
+     * Answers from the inventory, writing names straight to the Controller instead of building the reply first.
+     * Clearing changes before reading the inventory means any change the reply misses is in the next delta.
+     */
+    private void handleLIST() {
+        changes.clear();
+        int count = 0;
+        controllerLock.lock();
+        try {
+            cWriter.print(Protocol.LIST_TOKEN);
+            for (String filename : fileSizes.keySet()) {
+                cWriter.print(' ');
+                cWriter.print(filename);
+                count++;
+            }
+            cWriter.println();
+            cWriter.flush();
+        } finally {
+            controllerLock.unlock();
+        }
+        if (DEBUG) logger.info("Listed "+count+" files");
+    }
+
+    /**
+     * LIST_DELTA: replies LIST_DELTA followed by +name for each file added and -name for each file removed since
+     * the last LIST or LIST_DELTA. A change made while the reply is written is either in it or left for the next.
+     */
+    private void handleLIST_DELTA() {
+        int count = 0;
+        controllerLock.lock();
+        try {
+            cWriter.print(Protocol.LIST_DELTA_TOKEN);
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                if (changes.remove(change.getKey(), change.getValue())) {
+                    cWriter.print(change.getValue() ? " +" : " -");
+                    cWriter.print(change.getKey());
+                    count++;
+                }
+            }
+            cWriter.println();
+            cWriter.flush();
+        } finally {
+            controllerLock.unlock();
+        }
+        if (DEBUG) logger.info("Listed "+count+" changes");
+    }
+
+    /**
+     * REBALANCE files_to_send files_to_remove: copies each file to all its targets in parallel, then deletes the
+     * files to remove and sends REBALANCE_COMPLETE. A file is kept if any of its copies failed, so the next
+     * rebalance can try again.
+     */
+    private void handleREBALANCE(String input) {
+        String[] parts = input.split(" ");
+        //a thread per transfer rather than the connection pool, which this would otherwise wait on from inside
+        try (ExecutorService copies = Executors.newVirtualThreadPerTaskExecutor()) {
+            int i = 1;
+            int sends = Integer.parseInt(parts[i++]);
+            List<String> sent = new ArrayList<>();
+            List<Future<Boolean>> transfers = new ArrayList<>();
+            for (int s = 0; s < sends; s++) {
+                String filename = parts[i++];
+                int targets = Integer.parseInt(parts[i++]);
+                for (int t = 0; t < targets; t++) {
+                    int target = Integer.parseInt(parts[i++]);
+                    sent.add(filename);
+                    transfers.add(copies.submit(() -> sendRebalance(filename, target)));
+                }
+            }
+            int removes = Integer.parseInt(parts[i++]);
+
+            Set<String> failed = new HashSet<>();
+            for (int t = 0; t < transfers.size(); t++) {
+                if (!transfers.get(t).get()) {
+                    failed.add(sent.get(t));
+                }
+            }
+            for (int r = 0; r < removes; r++) {
+                String filename = parts[i++];
+                if (!failed.contains(filename)) {
+                    Files.deleteIfExists(Path.of(fileFolder, filename));
+                    invalidate(filename);
+                    removed(filename);
+                }
+            }
+            sendToController(Protocol.REBALANCE_COMPLETE_TOKEN);
+            if (DEBUG) logger.info("Sending REBALANCE_COMPLETE");
+        } catch (Exception e) {
+            logger.info("Rebalance failed: "+e);
+        }
+    }
+
+    /**
+     * Sends filename to the Dstore at target with REBALANCE_STORE, returning once that Dstore has stored it and
+     * closed the connection.
+     */
+    private boolean sendRebalance(String filename, int target) {
+        Path file = Path.of(fileFolder, filename);
+        try (Socket socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLocalHost(), target)).socket()) {
+            socket.setSoTimeout(timeout);
+            PrintWriter writer = new PrintWriter(socket.getOutputStream());
+            writer.println(Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + Files.size(file));
+            writer.flush();
+            InputStream input = socket.getInputStream();
+            String reply = new BufferedReader(new InputStreamReader(input)).readLine();
+            if (!Protocol.ACK_TOKEN.equals(reply)) {
+                logger.info("Dstore "+target+" replied "+reply+" to REBALANCE_STORE "+filename);
+                return false;
+            }
+            socket.setSoTimeout(0);
+            FileTransfer.send(file, socket);
+            socket.shutdownOutput();
+            input.read(); //end of stream once the target has the file in place
+            metrics.add("bytes.out", Files.size(file));
+            if (DEBUG) logger.info("Sent "+filename+" to Dstore "+target);
+            return true;
+        } catch (IOException e) {
+            logger.info("Could not send "+filename+" to Dstore "+target+": "+e);
+            return false;
+        }
+    }
+
+    /**
+     * REBUILD filename shard filesize k port...: recreates a lost shard of an erasure-coded file on this Dstore from
+     * k of the others, which it fetches with LOAD_DATA from the Dstores listed in shard order, 0 for one that is
+     * lost. They are read and decoded a block at a time, so a shard of any size needs only k+1 blocks of memory.
+     * Sends REBUILD_ACK filename shard once the shard is in place, and nothing if it could not be rebuilt.
+     */
+    private void handleREBUILD(String input) {
+        String[] parts = input.split(" ");
+        String filename = parts[1];
+        int shard = Integer.parseInt(parts[2]);
+        long filesize = Long.parseLong(parts[3]);
+        int dataShards = Integer.parseInt(parts[4]);
+        int total = parts.length - 5;
+        long shardSize = ReedSolomon.shardSize(filesize, dataShards);
+        int block = (int) Math.min(64 * 1024, shardSize);
+        List<Socket> sources = new ArrayList<>();
+        Path partial = null;
+        try {
+            ReedSolomon code = new ReedSolomon(dataShards, total - dataShards);
+            byte[][] blocks = new byte[total][];
+            boolean[] present = new boolean[total];
+            DataInputStream[] inputs = new DataInputStream[total];
+            for (int i = 0; i < total && sources.size() < dataShards; i++) {
+                int source = Integer.parseInt(parts[5 + i]);
+                if (i == shard || source == 0) {
+                    continue;
+                }
+                try {
+                    Socket socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLocalHost(), source)).socket();
+                    sources.add(socket);
+                    socket.setSoTimeout(timeout);
+                    PrintWriter writer = new PrintWriter(socket.getOutputStream());
+                    writer.println(Protocol.LOAD_DATA_TOKEN + " " + filename);
+                    writer.flush();
+                    inputs[i] = new DataInputStream(new BufferedInputStream(socket.getInputStream(), block + 1));
+                    blocks[i] = new byte[block];
+                    present[i] = true;
+                } catch (IOException e) {
+                    logger.info("Could not reach Dstore "+source+" for a shard of "+filename+": "+e);
+                }
+            }
+            if (sources.size() < dataShards) {
+                logger.info("Cannot rebuild "+filename+", only "+sources.size()+" of "+dataShards+" shards reachable");
+                return;
+            }
+            blocks[shard] = new byte[block];
+
+            partial = incomingFolder.resolve("rebuild-" + uploads.incrementAndGet() + ".part");
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (long done = 0; done < shardSize; ) {
+                    int n = (int) Math.min(block, shardSize - done);
+                    for (int i = 0; i < total; i++) {
+                        if (present[i]) {
+                            inputs[i].readFully(blocks[i], 0, n);
+                        }
+                    }
+                    code.reconstruct(blocks, present, 0, n);
+                    ByteBuffer out = ByteBuffer.wrap(blocks[shard], 0, n);
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    done += n;
+                }
+                if (fsync != Fsync.NONE) {
+                    channel.force(fsync == Fsync.FULL);
+                }
+            }
+            Files.move(partial, Path.of(fileFolder, filename), StandardCopyOption.ATOMIC_MOVE);
+            partial = null;
+            invalidate(filename);
+            added(filename, shardSize);
+            metrics.add("bytes.in", shardSize * dataShards);
+            metrics.increment("rebuilt.shards");
+            sendToController(Protocol.REBUILD_ACK_TOKEN + " " + filename + " " + shard);
+            logger.info("Rebuilt shard "+shard+" of "+filename);
+        } catch (Exception e) {
+            logger.info("Rebuild of "+filename+" failed: "+e);
+        } finally {
+            for (Socket source : sources) {
+                try {
+                    source.close();
+                } catch (IOException ignored) {
+
+                }
+            }
+            if (partial != null) {
+                try {
+                    Files.deleteIfExists(partial);
+                } catch (IOException ignored) {
+
+                }
+            }
+        }
+    }
+
+    /**
+     * REBALANCE_STORE filename filesize: stores a file sent by another Dstore during a rebalance. The Controller
+     * learns about it from the sender's REBALANCE_COMPLETE, so no STORE_ACK is sent.
+     */
+    private void handleREBALANCE_STORE(Socket socket, OutputStream output, String line) {
+        String[] parts = line.split(" ");
+        if (parts.length == 3){
+            String filename = parts[1];
+            long filesize = Long.parseLong(parts[2]);
+
+            try (PrintWriter writer = new PrintWriter(output)){
+                writer.println(Protocol.ACK_TOKEN);
+                writer.flush();
+                if (DEBUG) logger.info("Sending ACK");
+
+                storeFile(socket, filename, filesize, null, false);
+            }
+        }
+    }
+
+    private void handleSTORE(Socket socket, InputStream input, OutputStream output, String line) {
+        String[] parts = line.split(" ");
+        if (parts.length == 3){
+            String filename = parts[1];
+            long filesize = Long.parseLong(parts[2]);
+
+            try (PrintWriter writer = new PrintWriter(output)){
+                writer.println(Protocol.ACK_TOKEN);
+                writer.flush();
+                if (DEBUG) logger.info("Sending ACK");
+
+                storeFile(socket, filename, filesize, null, true);
+            }
+        }
+    }
+
+    /**
+     * STORE_BATCH n (filename filesize)...: after the ACK the client sends the files back to back. The Controller
+     * gets a single STORE_BATCH_ACK listing every file stored. A failed file ends the batch, since the rest of the
+     * stream can no longer be trusted; the Controller times out what was not acked.
+     */
+    private void handleSTORE_BATCH(Socket socket, OutputStream output, String line) {
+        String[] parts = line.split(" ");
+        int n = Integer.parseInt(parts[1]);
+        if (parts.length != 2 + 2 * n){
+            return;
+        }
+
+        StringBuilder stored = new StringBuilder(Protocol.STORE_BATCH_ACK_TOKEN);
+        try (PrintWriter writer = new PrintWriter(output)){
+            writer.println(Protocol.ACK_TOKEN);
+            writer.flush();
+            if (DEBUG) logger.info("Sending ACK");
+
+            for (int i = 0; i < n; i++) {
+                String filename = parts[2 + 2 * i];
+                if (!storeFile(socket, filename, Long.parseLong(parts[3 + 2 * i]), null, false)) {
+                    break;
+                }
+                stored.append(' ').append(filename);
+            }
+        } finally {
+            if (stored.length() > Protocol.STORE_BATCH_ACK_TOKEN.length()) {
+                sendToController(stored.toString());
+                if (DEBUG) logger.info("Sending "+stored);
+            }
+        }
+    }
+
+    /**
+     * STORE_PIPELINE filename filesize [next_port ...]: stores the file like STORE while streaming it on to the
+     * next Dstore in the list, which does the same for the rest, so the client only uploads it once.
+     */
+    private void handleSTORE_PIPELINE(Socket socket, OutputStream output, String line) {
+        String[] parts = line.split(" ");
+        if (parts.length >= 3){
+            String filename = parts[1];
+            long filesize = Long.parseLong(parts[2]);
+
+            Socket next = openPipeline(filename, filesize, parts);
+            try (PrintWriter writer = new PrintWriter(output)){
+                writer.println(Protocol.ACK_TOKEN);
+                writer.flush();
+                if (DEBUG) logger.info("Sending ACK");
+
+                storeFile(socket, filename, filesize, next, true);
+            } finally {
+                if (next != null) {
+                    try {
+                        next.close();
+                    } catch (IOException ignored) {
+
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects to the next Dstore in a pipeline and waits for its ACK. Returns null if this is the last Dstore or
+     * the next one cannot be reached, in which case its replica never acks and the Controller times the store out.
+     */
+    private Socket openPipeline(String filename, long filesize, String[] parts) {
+        if (parts.length == 3) {
+            return null;
+        }
+        int nextPort = Integer.parseInt(parts[3]);
+        StringBuilder message = new StringBuilder(Protocol.STORE_PIPELINE_TOKEN).append(' ').append(filename).append(' ').append(filesize);
+        for (int i = 4; i < parts.length; i++) {
+            message.append(' ').append(parts[i]);
+        }
+
+        Socket next = null;
+        try {
+            next = SocketChannel.open(new InetSocketAddress(InetAddress.getLocalHost(), nextPort)).socket();
+            next.setSoTimeout(timeout);
+            PrintWriter writer = new PrintWriter(next.getOutputStream());
+            writer.println(message);
+            writer.flush();
+            String reply = new BufferedReader(new InputStreamReader(next.getInputStream())).readLine();
+            if (Protocol.ACK_TOKEN.equals(reply)) {
+                next.setSoTimeout(0);
+                return next;
+            }
+            logger.info("Pipeline Dstore "+nextPort+" replied "+reply);
+        } catch (IOException e) {
+            logger.info("Could not reach pipeline Dstore "+nextPort+": "+e);
+        }
+        if (next != null) {
+            try {
+                next.close();
+            } catch (IOException ignored) {
+
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads filesize bytes from socket into fileFolder/filename and, if ack is set, sends STORE_ACK. The data goes to
+     * a partial file first and is renamed into place once complete, so a failed upload never leaves a truncated file
+     * behind. If next is not null each chunk is also forwarded to it as it arrives.
+     */
+    private boolean storeFile(Socket socket, String filename, long filesize, Socket next, boolean ack) {
+        Path partial = null;
+        try {
+            partial = incomingFolder.resolve("store-" + uploads.incrementAndGet() + ".part");
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                if (next == null) {
+                    FileTransfer.receive(socket, channel, filesize);
+                } else if (!FileTransfer.receive(socket, channel, filesize, next.getChannel())) {
+                    logger.info("Pipeline for "+filename+" broke after this Dstore");
+                }
+                if (fsync != Fsync.NONE) {
+                    channel.force(fsync == Fsync.FULL);
+                }
+            }
+            Files.move(partial, Path.of(fileFolder, filename), StandardCopyOption.ATOMIC_MOVE);
+            partial = null;
+            invalidate(filename); //it may have replaced a cached copy
+            if (fsync == Fsync.FULL) {
+                try (FileChannel folder = FileChannel.open(Path.of(fileFolder), StandardOpenOption.READ)) {
+                    folder.force(true);
+                }
+            }
+            added(filename, filesize);
+            metrics.add("bytes.in", filesize);
+
+            if (ack) {
+                sendToController(Protocol.STORE_ACK_TOKEN+ " " + filename);
+                if (DEBUG) logger.info("Sending STORE_ACK "+filename);
+            }
+            return true;
+
+        } catch (Exception e){
+            logger.info("Store of "+filename+" failed: "+e);
+            metrics.increment("store.failures");
+            return false;
+        } finally {
+            if (partial != null) {
+                try {
+                    Files.deleteIfExists(partial);
+                } catch (IOException ignored) {
+
+                }
+            }
+        }
+    }
+
+    /**
+     * LOAD_DATA filename [offset length]: sends the file, or up to length bytes of it from offset.
+     */
+    private void handleLOAD_DATA(Socket socket, InputStream input, OutputStream output, String line) {
+        String[] parts = line.split(" ");
+        try {
+            if (parts.length == 2){
+                sendFile(socket, parts[1]);
+            } else if (parts.length == 4) {
+                sendFile(socket, parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+            }
+        } catch (Exception ignored){
+
+        }
+    }
+
+    /**
+     * LOAD_DATA_BATCH n filename...: sends the files back to back, the client knowing their sizes from
+     * LOAD_BATCH_FROM. If one is missing the connection is closed there, so the client sees a short read.
+     */
+    private void handleLOAD_DATA_BATCH(Socket socket, String line) {
+        String[] parts = line.split(" ");
+        try {
+            int n = Integer.parseInt(parts[1]);
+            if (parts.length != 2 + n) {
+                return;
+            }
+            for (int i = 0; i < n; i++) {
+                if (!sendFile(socket, parts[2 + i])) {
+                    logger.info("Batch load stopped at missing file "+parts[2 + i]);
+                    return;
+                }
+            }
+        } catch (Exception ignored){
+
+        }
+    }
+
+    /**
+     * Writes filename's contents to socket, from the read cache if it is enabled. Returns false if there is no
+     * such file.
+     */
+    private boolean sendFile(Socket socket, String filename) throws IOException {
+        return sendFile(socket, filename, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * As sendFile, but only up to length bytes from offset; fewer if the file ends first.
+     */
+    private boolean sendFile(Socket socket, String filename, long offset, long length) throws IOException {
+        File file = new File(fileFolder, filename);
+        if (!file.exists() || offset < 0 || length < 0){
+            return false;
+        }
+        ByteBuffer cached = cache != null ? cache.get(filename, file.toPath()) : null;
+        if (cached != null) {
+            int start = (int) Math.min(offset, cached.remaining());
+            ByteBuffer range = cached.slice(cached.position() + start, (int) Math.min(length, cached.remaining() - start));
+            metrics.add("bytes.out", range.remaining());
+            FileTransfer.send(range, socket);
+        } else {
+            metrics.add("bytes.out", FileTransfer.send(file.toPath(), offset, length, socket));
+        }
+        return true;
+    }
+}
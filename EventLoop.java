@@ -0,0 +1,508 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Serves client connections from a few selector threads instead of a thread per connection, so that a large number
+ * of idle or lightly used connections costs little more than their buffers. Each connection keeps one read buffer
+ * and one write buffer for its whole life; both start small and grow only for long messages. Like the blocking
+ * path, a connection speaks text unless its first byte is BinaryProtocol.MAGIC, and the Handler sees each line or
+ * frame in order.
+ *
+ * Replies are appended to the write buffer and only written out once the loop has handled everything that was
+ * ready, so a client that pipelines requests gets its replies back in as few writes as possible. Replies sent from
+ * other threads, e.g. STORE_COMPLETE, wake the loop to flush them. A client that stops reading its replies is not
+ * read from either until it catches up, and other threads replying to it wait, as they would on a blocking socket,
+ * so the pending bytes stay bounded. A reply too long to build on the loop thread, such as a LIST, is offloaded to
+ * a thread of its own that writes it as the client reads it.
+ *
+ * A connection that needs a thread of its own, such as a Dstore after JOIN, is handed off: it leaves the loop and
+ * is switched back to blocking mode, and the HandOff gets any bytes the loop had already read ahead of the socket.
+ */
+public class EventLoop {
+    private static final Logger logger = Logger.getLogger(EventLoop.class.getName());
+    private static final int INITIAL_BUFFER = 1024;
+    private static final int MAX_MESSAGE = Frame.MAX_FRAME;
+    private static final int WRITE_HIGH_WATER = 256 * 1024; //pending reply bytes after which a client is not read
+    private static final int TEXT = 1;
+    private static final int BINARY = 2;
+
+    public interface Handler {
+        void onLine(Connection connection, String line);
+
+        void onFrame(Connection connection, Frame frame);
+
+        void onClose(Connection connection);
+    }
+
+    public interface HandOff {
+        void run(Socket socket, InputStream input) throws IOException;
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final ExecutorService handOffs;
+    private final Loop[] loops;
+
+    public EventLoop(int port, int threads, Handler handler, ExecutorService handOffs) throws IOException {
+        this.port = port;
+        this.handler = handler;
+        this.handOffs = handOffs;
+        this.loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop();
+        }
+    }
+
+    /**
+     * Accepts connections on port and serves them until the process exits. The calling thread runs the first loop.
+     */
+    public void run() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT, server);
+        for (int i = 1; i < loops.length; i++) {
+            new Thread(loops[i], "event-loop-" + i).start();
+        }
+        Thread.currentThread().setName("event-loop-0");
+        loops[0].run();
+    }
+
+    private class Loop implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> accepted; //handed over by the accepting loop
+        final Queue<Connection> flushes; //replies sent from other threads
+        final Queue<Connection> resumes; //connections whose offloaded message has been handled
+        final List<Connection> dirty; //connections with replies from this iteration
+        final List<Connection> leaving; //connections handed off during this iteration
+        volatile Thread thread;
+        int next; //loop that gets the next accepted connection
+
+        Loop() throws IOException {
+            this.selector = Selector.open();
+            this.accepted = new ConcurrentLinkedQueue<>();
+            this.flushes = new ConcurrentLinkedQueue<>();
+            this.resumes = new ConcurrentLinkedQueue<>();
+            this.dirty = new ArrayList<>();
+            this.leaving = new ArrayList<>();
+        }
+
+        @Override
+        public void run(){
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        register(channel);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.attachment() instanceof ServerSocketChannel server) {
+                            accept(server);
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isWritable()) {
+                            connection.flushNow();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    }
+                    Connection connection;
+                    while ((connection = flushes.poll()) != null) {
+                        dirty.add(connection);
+                    }
+                    while ((connection = resumes.poll()) != null) {
+                        connection.resume();
+                    }
+                    for (Connection batched : dirty) {
+                        batched.flushNow();
+                    }
+                    dirty.clear();
+                    if (!leaving.isEmpty()) {
+                        handOff();
+                    }
+                } catch (IOException e) {
+                    logger.info("Event loop error: "+e);
+                }
+            }
+        }
+
+        private void accept(ServerSocketChannel server) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                Loop loop = loops[next];
+                next = (next + 1) % loops.length;
+                if (loop == this) {
+                    register(channel);
+                } else {
+                    loop.accepted.add(channel);
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        private void register(SocketChannel channel){
+            try {
+                channel.configureBlocking(false);
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+
+                }
+            }
+        }
+
+        /**
+         * Takes the connections handed off in this iteration out of the selector and gives them to their HandOffs.
+         */
+        private void handOff() throws IOException {
+            for (Connection connection : leaving) {
+                connection.key.cancel();
+            }
+            selector.selectNow(); //deregisters the cancelled keys, so the channels can block again
+            for (Connection connection : leaving) {
+                try {
+                    connection.channel.configureBlocking(true);
+                } catch (IOException e) {
+                    connection.close();
+                    continue;
+                }
+                Socket socket = connection.channel.socket();
+                InputStream readAhead = new ByteArrayInputStream(connection.readAhead);
+                HandOff handOff = connection.handOff;
+                handOffs.execute(() -> {
+                    try (socket) {
+                        handOff.run(socket, new SequenceInputStream(readAhead, socket.getInputStream()));
+                    } catch (IOException e) {
+                        logger.info("Handed off connection closed: "+e);
+                    }
+                });
+            }
+            leaving.clear();
+        }
+    }
+
+    public class Connection {
+        private final SocketChannel channel;
+        private final Loop loop;
+        private SelectionKey key;
+        private ByteBuffer in; //filled by reads, compacted after each
+        private int mode; //TEXT or BINARY once the first byte has arrived
+        private Frame frame;
+        private ClientWriter writer;
+        private HandOff handOff;
+        private byte[] readAhead;
+        private boolean busy; //an offloaded message is being handled, so no more are read
+        private volatile boolean closed;
+
+        private final ReentrantLock outLock;
+        private final Condition drained; //signalled when a flush makes room in out
+        private ByteBuffer out; //pending reply bytes from position 0, null until the first reply
+        private boolean queued; //waiting for the loop to flush it
+
+        private final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b){
+                outLock.lock();
+                try {
+                    if (awaitRoom()) {
+                        reserve(1).put((byte) b);
+                    }
+                } finally {
+                    outLock.unlock();
+                }
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length){
+                outLock.lock();
+                try {
+                    if (awaitRoom()) {
+                        reserve(length).put(bytes, offset, length);
+                    }
+                } finally {
+                    outLock.unlock();
+                }
+            }
+
+            @Override
+            public void flush(){
+                requestFlush();
+            }
+        };
+
+        private Connection(SocketChannel channel, Loop loop){
+            this.channel = channel;
+            this.loop = loop;
+            this.in = ByteBuffer.allocate(INITIAL_BUFFER);
+            this.outLock = new ReentrantLock();
+            this.drained = outLock.newCondition();
+        }
+
+        /**
+         * Waits, off the loop thread, until fewer than WRITE_HIGH_WATER reply bytes are pending. The loop thread never
+         * waits: it stops reading the connection instead. Returns false if the connection has closed. Must be called
+         * holding outLock.
+         */
+        private boolean awaitRoom(){
+            while (!closed && out != null && out.position() >= WRITE_HIGH_WATER && Thread.currentThread() != loop.thread) {
+                requestFlush();
+                drained.awaitUninterruptibly();
+            }
+            return !closed;
+        }
+
+        private ByteBuffer reserve(int length){
+            if (out == null) {
+                out = ByteBuffer.allocate(Math.max(INITIAL_BUFFER, length));
+            } else if (out.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            return out;
+        }
+
+        public Socket socket(){
+            return channel.socket();
+        }
+
+        public ClientWriter writer(){
+            return writer;
+        }
+
+        /**
+         * Takes the connection out of the loop once the current message has been handled. No further messages are
+         * read from it here.
+         */
+        public void handOff(HandOff handOff){
+            this.handOff = handOff;
+        }
+
+        /**
+         * Handles the current message on a virtual thread of its own, for a reply that may be too long to buffer
+         * whole, such as a LIST. Its writes wait for the client to read, and no further messages are read from the
+         * connection until it has finished, so replies stay in order. Runs on the loop thread.
+         */
+        public void offload(Runnable task){
+            busy = true;
+            Thread.ofVirtual().name("offload").start(() -> {
+                try {
+                    task.run();
+                } finally {
+                    loop.resumes.add(this);
+                    loop.selector.wakeup();
+                }
+            });
+        }
+
+        private void read(){
+            try {
+                if (channel.read(in) < 0) {
+                    close();
+                    return;
+                }
+                handleInput();
+            } catch (IOException | RuntimeException e) {
+                logger.info("Client connection closed: "+e);
+                close();
+            }
+        }
+
+        /**
+         * Goes back to reading messages once an offloaded one has been handled, starting with any already read.
+         */
+        private void resume(){
+            busy = false;
+            if (closed) {
+                return;
+            }
+            try {
+                handleInput();
+            } catch (IOException | RuntimeException e) {
+                logger.info("Client connection closed: "+e);
+                close();
+            }
+        }
+
+        /**
+         * Handles the complete messages in the read buffer, leaving it ready for the next read.
+         */
+        private void handleInput() throws IOException {
+            in.flip();
+            if (mode == 0 && in.hasRemaining()) {
+                if ((in.get(in.position()) & 0xff) == BinaryProtocol.MAGIC) {
+                    in.get();
+                    mode = BINARY;
+                    frame = new Frame();
+                    writer = new ClientWriter.Binary(output);
+                } else {
+                    mode = TEXT;
+                    writer = new ClientWriter.Text(output);
+                }
+            }
+            if (mode == TEXT) {
+                readLines();
+            } else if (mode == BINARY) {
+                while (handOff == null && !closed && !busy && frame.read(in)) {
+                    handler.onFrame(this, frame);
+                }
+            }
+            if (closed) {
+                return;
+            }
+            if (handOff != null) {
+                readAhead = new byte[in.remaining()];
+                in.get(readAhead);
+                loop.leaving.add(this);
+                return;
+            }
+            in.compact();
+            if (!in.hasRemaining() && !busy) {
+                if (in.capacity() >= MAX_MESSAGE) {
+                    throw new IOException("Message too long");
+                }
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_MESSAGE));
+                in.flip();
+                grown.put(in);
+                in = grown;
+            }
+            updateInterest();
+        }
+
+        private void readLines(){
+            byte[] bytes = in.array();
+            int start = in.position();
+            for (int i = start; i < in.limit() && handOff == null && !closed && !busy; i++) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+                int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                String line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                in.position(start);
+                handler.onLine(this, line);
+            }
+        }
+
+        private void requestFlush(){
+            outLock.lock();
+            try {
+                if (queued) {
+                    return;
+                }
+                queued = true;
+            } finally {
+                outLock.unlock();
+            }
+            if (Thread.currentThread() == loop.thread) {
+                loop.dirty.add(this);
+            } else {
+                loop.flushes.add(this);
+                loop.selector.wakeup();
+            }
+        }
+
+        /**
+         * Writes as much of the pending replies as the socket takes without blocking. Runs on the loop thread.
+         */
+        private void flushNow(){
+            if (closed || handOff != null) {
+                return;
+            }
+            outLock.lock();
+            try {
+                queued = false;
+                if (out != null) {
+                    out.flip();
+                    channel.write(out);
+                    out.compact();
+                    if (out.position() == 0 && out.capacity() > INITIAL_BUFFER) {
+                        out = null; //drop a buffer grown for a long reply
+                    }
+                    if (out == null || out.position() < WRITE_HIGH_WATER) {
+                        drained.signalAll();
+                    }
+                }
+            } catch (IOException e) {
+                logger.info("Client connection closed: "+e);
+                close();
+                return;
+            } finally {
+                outLock.unlock();
+            }
+            updateInterest();
+        }
+
+        private void updateInterest(){
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int pending;
+            outLock.lock();
+            try {
+                pending = out == null ? 0 : out.position();
+            } finally {
+                outLock.unlock();
+            }
+            int ops = pending > 0 ? SelectionKey.OP_WRITE : 0;
+            if (pending < WRITE_HIGH_WATER && !busy) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        private void close(){
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                outLock.unlock();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+
+            }
+            handler.onClose(this);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the executor that Controller and Dstore run their connections on. Each connection is one task that
+ * reads and handles its messages in order, so responses on a connection are never reordered.
+ *
+ * The model is chosen with the "execution" system property:
+ * "virtual" (default) runs every connection on its own virtual thread;
+ * "pool" runs connections on "execution.threads" platform threads with at most "execution.queue" connections
+ * waiting, after which the accepting thread blocks until one is picked up.
+ */
+public class ExecutionModel {
+
+    public static ExecutorService forConnections(String name){
+        String model = System.getProperty("execution", "virtual");
+        switch (model) {
+            case "virtual":
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+            case "pool":
+                int threads = Integer.getInteger("execution.threads", Runtime.getRuntime().availableProcessors() * 16);
+                int queue = Integer.getInteger("execution.queue", 1024);
+                return boundedPool(name, threads, queue);
+            default:
+                throw new IllegalArgumentException("Unknown execution model: " + model);
+        }
+    }
+
+    private static ExecutorService boundedPool(String name, int threads, int queue){
+        ThreadFactory factory = Thread.ofPlatform().name(name + "-", 0).factory();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue), factory,
+                (task, executor) -> {
+                    try {
+                        executor.getQueue().put(task); //backpressure: wait for room instead of rejecting
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A phi accrual failure detector over the Dstores' heartbeats. Rather than a fixed deadline, each Dstore gets a
+ * suspicion level phi that rises the longer it has been silent compared with how often its heartbeats usually
+ * arrive, so a slow network raises the bar on its own. Inter-arrival times are taken to be exponentially
+ * distributed, which makes phi = elapsed / (mean * ln 10): a phi of 8 is about 18 mean intervals of silence.
+ *
+ * Any message from a Dstore shows it is alive, but only heartbeat replies are used to learn the interval, since
+ * acks come in bursts.
+ */
+public class FailureDetector {
+    private static final int WINDOW = 100; //heartbeat intervals remembered per Dstore
+
+    private static class History {
+        final ReentrantLock lock = new ReentrantLock();
+        final long[] intervals = new long[WINDOW];
+        int count;
+        int next;
+        long sum;
+        long lastHeard; //nanoTime of the last message of any kind
+        long lastHeartbeat; //nanoTime of the last heartbeat reply
+    }
+
+    private final long minInterval; //nanoseconds, the heartbeat period
+    private final double threshold;
+    private final Map<Integer, History> histories;
+
+    public FailureDetector(long periodMillis, double threshold){
+        this.minInterval = periodMillis * 1_000_000L;
+        this.threshold = threshold;
+        this.histories = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts watching port, as if a heartbeat had just arrived.
+     */
+    public void join(int port){
+        History history = new History();
+        history.lastHeard = history.lastHeartbeat = System.nanoTime();
+        histories.put(port, history);
+    }
+
+    public void leave(int port){
+        histories.remove(port);
+    }
+
+    /**
+     * Records a message from port other than a heartbeat reply.
+     */
+    public void heard(int port){
+        History history = histories.get(port);
+        if (history == null) {
+            return;
+        }
+        history.lock.lock();
+        try {
+            history.lastHeard = System.nanoTime();
+        } finally {
+            history.lock.unlock();
+        }
+    }
+
+    public void heartbeat(int port){
+        History history = histories.get(port);
+        if (history == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        history.lock.lock();
+        try {
+            long interval = now - history.lastHeartbeat;
+            if (history.count == WINDOW) {
+                history.sum -= history.intervals[history.next];
+            } else {
+                history.count++;
+            }
+            history.intervals[history.next] = interval;
+            history.sum += interval;
+            history.next = (history.next + 1) % WINDOW;
+            history.lastHeartbeat = now;
+            history.lastHeard = now;
+        } finally {
+            history.lock.unlock();
+        }
+    }
+
+    /**
+     * The current suspicion level of port, 0 if it is not being watched.
+     */
+    public double phi(int port){
+        History history = histories.get(port);
+        if (history == null) {
+            return 0;
+        }
+        history.lock.lock();
+        try {
+            //never below the period, or a few quick replies would make an ordinary pause look like a failure
+            double mean = history.count == 0 ? minInterval : Math.max(minInterval, (double) history.sum / history.count);
+            return (System.nanoTime() - history.lastHeard) / (mean * Math.log(10));
+        } finally {
+            history.lock.unlock();
+        }
+    }
+
+    public boolean isSuspected(int port){
+        return phi(port) > threshold;
+    }
+}
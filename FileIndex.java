@@ -0,0 +1,374 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The Controller's file index. Each file has a single Entry holding everything the Controller knows about it,
+ * and all changes to an entry happen while holding the stripe lock for its filename, so operations on
+ * different files never wait on each other. The stripes are ReentrantLocks rather than monitors because
+ * handlers write to sockets while holding them, which would pin a virtual thread to its carrier.
+ *
+ * Replicas only change through put, remove and setReplicas, which report each change to the Placement so its
+ * per-Dstore counts stay current without rescanning the index, and keep a reverse index of the files on each
+ * Dstore so losing one only touches its own files. If there is an IndexLog, those methods, markStored
+ * and beginRemove also append each transition to it, and recover loads the index back from it.
+ *
+ * The names of STORED files are also kept in name order, so LIST can page through them without locking anything.
+ * Those with a content hash are also indexed by it, so a STORE of content that is already stored can find a copy.
+ *
+ * An erasure-coded file has a shard on each of k+m Dstores, in the order of its shards, instead of full replicas.
+ * Its replicas are the Dstores whose shard is known to be there, so a lost shard keeps its Dstore in shards until
+ * it is rebuilt elsewhere, and that Dstore's copy is taken back if it rejoins with it.
+ *
+ * A chunked file has no replicas of its own. Each of its chunks is an entry of its own, named by chunkName and
+ * replicated like any file, but left out of the stored names so LIST only shows the file.
+ */
+public class FileIndex {
+    private static final int STRIPES = 64; //must be a power of two
+
+    /**
+     * An entry is created in STORE_IN_PROGRESS, becomes STORED once every replica has acked, and moves to
+     * REMOVE_IN_PROGRESS when a REMOVE is accepted. It leaves the index when a store fails or a remove completes.
+     */
+    public enum State {
+        STORE_IN_PROGRESS,
+        STORED,
+        REMOVE_IN_PROGRESS
+    }
+
+    public static class Entry {
+        final String filename;
+        final long size;
+        volatile State state;
+        volatile List<Integer> replicas; //immutable, replaced through setReplicas so it can be read without the lock
+        private final Set<Integer> acked; //Dstores that have acked the operation in progress
+        ClientWriter client; //client waiting for STORE_COMPLETE or REMOVE_COMPLETE
+        Batch batch; //or the batch waiting for it, with this file at batchIndex
+        int batchIndex;
+        TimerWheel.Timeout deadline; //timeout for the operation in progress
+        long started; //System.nanoTime when the operation in progress was requested
+        String hash; //content hash given by the client, or null
+        boolean linked; //being stored by linking to a stored copy of the same content rather than by upload
+        Set<Integer> unlinked; //replicas of a linked entry that could not link, and are uploaded to instead
+        boolean uploading; //the client has been sent STORE_TO for the unlinked replicas
+        int dataShards; //k, if erasure-coded, else 0
+        volatile List<Integer> shards; //immutable, the Dstore given each shard if erasure-coded, else null
+        int chunks; //number of chunks, if chunked, else 0
+        long chunkSize; //bytes in every chunk but the last, if chunked
+        boolean chunk; //one chunk of a chunked file
+
+        Entry(String filename, long size, List<Integer> replicas, ClientWriter client){
+            this.filename = filename;
+            this.size = size;
+            this.state = State.STORE_IN_PROGRESS;
+            this.replicas = List.copyOf(replicas);
+            this.acked = new HashSet<>();
+            this.client = client;
+            this.started = System.nanoTime();
+        }
+
+        /**
+         * An erasure-coded entry whose shards go to the given Dstores in order, all of them replicas to start with.
+         */
+        Entry(String filename, long size, int dataShards, List<Integer> shards, ClientWriter client){
+            this(filename, size, shards, client);
+            this.dataShards = dataShards;
+            this.shards = List.copyOf(shards);
+        }
+
+        boolean isErasureCoded(){
+            return shards != null;
+        }
+
+        boolean isChunked(){
+            return chunks > 0;
+        }
+
+        /**
+         * Moves a STORED entry to REMOVE_IN_PROGRESS. Returns false if the entry is in any other state.
+         */
+        boolean beginRemove(ClientWriter client){
+            if (state != State.STORED) {
+                return false;
+            }
+            state = State.REMOVE_IN_PROGRESS;
+            acked.clear();
+            this.client = client;
+            this.started = System.nanoTime();
+            return true;
+        }
+
+        /**
+         * Records an ack from port for the operation in progress, ignoring acks from Dstores that are not
+         * replicas of this file and repeated acks. Returns true once every current replica has acked.
+         */
+        boolean ack(int port){
+            if (!replicas.contains(port)) {
+                return false;
+            }
+            acked.add(port);
+            return isAcked();
+        }
+
+        boolean isAcked(){
+            return acked.containsAll(replicas);
+        }
+
+        int ackCount(){
+            return acked.size();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final ConcurrentSkipListSet<String> stored; //names of STORED entries
+    private final ConcurrentHashMap<Integer, Set<String>> byDstore; //files with a replica on each Dstore
+    private final ConcurrentHashMap<String, Set<String>> byHash; //STORED files with each content hash
+    private final ReentrantLock[] locks;
+    private final Placement placement;
+    private final IndexLog log; //null if the index is not persisted
+
+    public FileIndex(Placement placement, IndexLog log){
+        this.placement = placement;
+        this.log = log;
+        this.entries = new ConcurrentHashMap<>();
+        this.stored = new ConcurrentSkipListSet<>();
+        this.byDstore = new ConcurrentHashMap<>();
+        this.byHash = new ConcurrentHashMap<>();
+        this.locks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns the lock guarding the entry for filename. Callers must hold it while creating, changing or
+     * removing that entry.
+     */
+    public ReentrantLock lockFor(String filename){
+        int h = filename.hashCode();
+        return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * The name chunk i of filename is indexed and stored on Dstores under.
+     */
+    public static String chunkName(String filename, int i){
+        return filename + "#" + i;
+    }
+
+    /**
+     * The chunked file a chunk name belongs to.
+     */
+    public static String parentOf(String chunkName){
+        return chunkName.substring(0, chunkName.lastIndexOf('#'));
+    }
+
+    public Entry get(String filename){
+        return entries.get(filename);
+    }
+
+    public void put(Entry entry){
+        entries.put(entry.filename, entry);
+        for (int port : entry.replicas) {
+            replicaAdded(port, entry.filename);
+        }
+        append(IndexLog.STORE_STARTED, entry);
+    }
+
+    /**
+     * Loads the files that were stored, or being removed, when the log was last written. Stores that were still in
+     * progress are dropped, since their clients never got STORE_COMPLETE.
+     */
+    public void recover() throws IOException {
+        if (log == null) {
+            return;
+        }
+        for (IndexLog.Record record : log.recover(this::entries)) {
+            if (record.state == State.STORE_IN_PROGRESS) {
+                continue;
+            }
+            Entry entry = record.shards == null ? new Entry(record.filename, record.size, record.replicas, null)
+                    : new Entry(record.filename, record.size, record.dataShards, record.shards, null);
+            entry.replicas = List.copyOf(record.replicas);
+            entry.state = record.state;
+            entry.hash = record.hash;
+            entry.chunks = record.chunks;
+            entry.chunkSize = record.chunkSize;
+            entry.chunk = record.chunk;
+            entries.put(entry.filename, entry);
+            if (entry.state == State.STORED) {
+                if (!entry.chunk) {
+                    stored.add(entry.filename);
+                }
+                hashed(entry);
+            }
+            for (int port : entry.replicas) {
+                replicaAdded(port, entry.filename);
+            }
+        }
+    }
+
+    public void markStored(Entry entry){
+        entry.state = State.STORED;
+        if (!entry.chunk) {
+            stored.add(entry.filename);
+        }
+        hashed(entry);
+        append(IndexLog.STORED, entry);
+    }
+
+    /**
+     * Moves a STORED entry to REMOVE_IN_PROGRESS, see Entry.beginRemove.
+     */
+    public boolean beginRemove(Entry entry, ClientWriter client){
+        if (!entry.beginRemove(client)) {
+            return false;
+        }
+        stored.remove(entry.filename);
+        unhashed(entry); //no longer a copy to link to
+        append(IndexLog.REMOVE_STARTED, entry);
+        return true;
+    }
+
+    /**
+     * Replaces the replicas of an entry, which must be held in the index. Dstores not given a shard of an
+     * erasure-coded entry are left out.
+     */
+    public void setReplicas(Entry entry, List<Integer> replicas){
+        if (entry.isErasureCoded()) {
+            replicas = replicas.stream().filter(entry.shards::contains).toList();
+        }
+        List<Integer> before = entry.replicas;
+        if (before.size() == replicas.size() && before.containsAll(replicas)) {
+            return;
+        }
+        entry.replicas = List.copyOf(replicas);
+        for (int port : before) {
+            if (!replicas.contains(port)) {
+                replicaRemoved(port, entry.filename);
+            }
+        }
+        for (int port : replicas) {
+            if (!before.contains(port)) {
+                replicaAdded(port, entry.filename);
+            }
+        }
+        if (entry.state == State.STORED) {
+            append(IndexLog.STORED, entry);
+        } else if (entry.state == State.REMOVE_IN_PROGRESS) {
+            append(IndexLog.REMOVE_STARTED, entry);
+        }
+    }
+
+    /**
+     * Gives shard of an erasure-coded entry to port, which now holds it, in place of the Dstore that lost it.
+     */
+    public void setShard(Entry entry, int shard, int port){
+        List<Integer> shards = new ArrayList<>(entry.shards);
+        int lost = shards.set(shard, port);
+        List<Integer> replicas = new ArrayList<>(entry.replicas);
+        replicas.remove(Integer.valueOf(lost));
+        replicas.add(port);
+        entry.shards = List.copyOf(shards);
+        setReplicas(entry, replicas);
+    }
+
+    /**
+     * Removes the entry for filename, cancelling the timeout of any operation still in progress on it.
+     */
+    public void remove(String filename){
+        Entry entry = entries.remove(filename);
+        if (entry == null) {
+            return;
+        }
+        stored.remove(filename);
+        unhashed(entry);
+        if (entry.deadline != null) {
+            entry.deadline.cancel();
+        }
+        for (int port : entry.replicas) {
+            replicaRemoved(port, filename);
+        }
+        append(IndexLog.REMOVED, entry);
+    }
+
+    private void hashed(Entry entry){
+        if (entry.hash != null) {
+            byHash.computeIfAbsent(entry.hash, k -> ConcurrentHashMap.newKeySet()).add(entry.filename);
+        }
+    }
+
+    private void unhashed(Entry entry){
+        if (entry.hash != null) {
+            byHash.computeIfPresent(entry.hash, (k, names) -> names.remove(entry.filename) && names.isEmpty() ? null : names);
+        }
+    }
+
+    /**
+     * A STORED entry with the given content hash and size, or null if there is none.
+     */
+    public Entry storedCopy(String hash, long size){
+        Set<String> names = byHash.get(hash);
+        if (names == null) {
+            return null;
+        }
+        for (String name : names) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.state == State.STORED && entry.size == size) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void replicaAdded(int port, String filename){
+        byDstore.computeIfAbsent(port, k -> ConcurrentHashMap.newKeySet()).add(filename);
+        placement.replicaAdded(port);
+    }
+
+    private void replicaRemoved(int port, String filename){
+        Set<String> files = byDstore.get(port);
+        if (files != null) {
+            files.remove(filename);
+        }
+        placement.replicaRemoved(port);
+    }
+
+    private void append(String type, Entry entry){
+        if (log != null) {
+            log.append(type, entry);
+        }
+    }
+
+    public Collection<Entry> entries(){
+        return entries.values();
+    }
+
+    /**
+     * Names of the STORED files in order. The view is read-only and, like the index, may change while it is read.
+     */
+    public NavigableSet<String> storedNames(){
+        return Collections.unmodifiableNavigableSet(stored);
+    }
+
+    /**
+     * Names of the files with a replica on port, in any state. The view is read-only and may change while it is
+     * read, so copy it before changing the entries it names.
+     */
+    public Set<String> filesOn(int port){
+        Set<String> files = byDstore.get(port);
+        return files == null ? Set.of() : Collections.unmodifiableSet(files);
+    }
+
+    public boolean isEmpty(){
+        return entries.isEmpty();
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Moves file contents between files and sockets without staging them in the heap. When the socket has a channel
+ * the copy is done by FileChannel.transferTo/transferFrom (sendfile on Linux for sends); otherwise the bytes are
+ * pumped through a pooled direct buffer.
+ */
+public class FileTransfer {
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    //pooled rather than thread-local, since connections run on short-lived virtual threads
+    private static final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Writes the whole of file to socket and returns the number of bytes sent.
+     */
+    public static long send(Path file, Socket socket) throws IOException {
+        return send(file, 0, Long.MAX_VALUE, socket);
+    }
+
+    /**
+     * Writes up to length bytes of file, starting at offset, to socket and returns the number of bytes sent, which
+     * is less than length if the file ends first.
+     */
+    public static long send(Path file, long offset, long length, Socket socket) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = Math.min(channel.size(), offset + Math.min(length, Long.MAX_VALUE - offset));
+            SocketChannel target = socket.getChannel();
+            if (target != null) {
+                return transfer(channel, offset, end, target);
+            }
+            return copy(channel, offset, end, Channels.newChannel(socket.getOutputStream()));
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of data to socket, leaving data's position unchanged.
+     */
+    public static void send(ByteBuffer data, Socket socket) throws IOException {
+        WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        ByteBuffer view = data.duplicate();
+        while (view.hasRemaining()) {
+            target.write(view);
+        }
+    }
+
+    /**
+     * Reads exactly size bytes from socket into target, starting at target's position 0. Throws EOFException if
+     * the connection closes first.
+     */
+    public static void receive(Socket socket, FileChannel target, long size) throws IOException {
+        SocketChannel source = socket.getChannel();
+        if (source == null) {
+            copy(Channels.newChannel(socket.getInputStream()), target, size);
+            return;
+        }
+        long position = 0;
+        while (position < size) {
+            long read = target.transferFrom(source, position, size - position);
+            if (read <= 0) {
+                //transferFrom cannot tell end of stream from no data yet, so read a chunk directly to find out
+                read = readChunk(source, target, position, size - position);
+                if (read < 0) {
+                    throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+                }
+            }
+            position += read;
+        }
+    }
+
+    private static long readChunk(ReadableByteChannel source, FileChannel target, long position, long remaining) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            int read = source.read(buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer, position + buffer.position());
+            }
+            return read;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Like receive, but also writes each chunk to forward as soon as it has been read. A failure writing to forward
+     * stops the forwarding without affecting the local copy; returns false if that happened.
+     */
+    public static boolean receive(Socket socket, FileChannel target, long size, WritableByteChannel forward) throws IOException {
+        ReadableByteChannel source = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long position = 0;
+            while (position < size) {
+                buffer.limit((int) Math.min(buffer.capacity(), size - position));
+                if (source.read(buffer) < 0) {
+                    throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+                }
+                buffer.flip();
+                long chunkStart = position;
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer, position);
+                }
+                if (forward != null) {
+                    buffer.position(0).limit((int) (position - chunkStart));
+                    try {
+                        while (buffer.hasRemaining()) {
+                            forward.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        forward = null;
+                    }
+                }
+                buffer.clear();
+            }
+            return forward != null;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Sends the bytes of source from start up to end, and returns how many were sent.
+     */
+    static long transfer(FileChannel source, long start, long end, WritableByteChannel target) throws IOException {
+        long position = start;
+        while (position < end) {
+            long sent = source.transferTo(position, end - position, target);
+            if (sent <= 0) {
+                if (position >= source.size()) {
+                    break; //file was truncated while sending
+                }
+                //on a virtual thread the socket is non-blocking underneath, so a full send buffer makes transferTo
+                //return 0 instead of waiting; an ordinary write parks until there is room
+                sent = writeChunk(source, position, end, target);
+            }
+            position += sent;
+        }
+        return position - start;
+    }
+
+    private static long writeChunk(FileChannel source, long position, long end, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long written = 0;
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = source.read(buffer, position);
+            if (read > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+            }
+            return written;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    static long copy(FileChannel source, long start, long end, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long position = start;
+            while (position < end) {
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = source.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer);
+                }
+                buffer.clear();
+            }
+            return position - start;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    static void copy(ReadableByteChannel source, FileChannel target, long size) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long position = 0;
+            while (position < size) {
+                buffer.limit((int) Math.min(buffer.capacity(), size - position));
+                if (source.read(buffer) < 0) {
+                    throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer, position);
+                }
+                buffer.clear();
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    static ByteBuffer acquireBuffer(){
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    static void releaseBuffer(ByteBuffer buffer){
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+}
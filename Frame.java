@@ -0,0 +1,225 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable buffer for one BinaryProtocol frame at a time, used either to read frames from a stream or to build
+ * and write them. A connection keeps one Frame per direction, so once the buffer has grown to fit its largest
+ * frame, reading, parsing and writing frames allocate nothing apart from the strings taken out of them.
+ *
+ * A read frame is parsed in a single pass: read fills the buffer and decodes the opcode, and each nextLong or
+ * nextString decodes the following field where it lies.
+ */
+public class Frame {
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int HEADER = 5; //room for the longest varint frame length
+
+    private byte[] buffer;
+    private int position; //next byte to read or write
+    private int limit; //end of the frame being read
+    int opcode;
+
+    public Frame(){
+        this.buffer = new byte[512];
+    }
+
+    /**
+     * Reads the next frame from in, which should be buffered. Returns false if the stream ends between frames.
+     */
+    public boolean read(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return false;
+                }
+                throw new EOFException("Stream ended inside a frame header");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift >= 28) {
+                throw new IOException("Bad frame length");
+            }
+        }
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length "+length);
+        }
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            read += n;
+        }
+        limit = length;
+        opcode = buffer[0] & 0xff;
+        position = 1;
+        return true;
+    }
+
+    /**
+     * Takes the next frame from source if source holds all of it. Otherwise leaves source as it was and returns
+     * false, so the caller can read more into it and try again.
+     */
+    public boolean read(ByteBuffer source) throws IOException {
+        int start = source.position();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!source.hasRemaining()) {
+                source.position(start);
+                return false;
+            }
+            int b = source.get() & 0xff;
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift >= 28) {
+                throw new IOException("Bad frame length");
+            }
+        }
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length "+length);
+        }
+        if (source.remaining() < length) {
+            source.position(start);
+            return false;
+        }
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        source.get(buffer, 0, length);
+        limit = length;
+        opcode = buffer[0] & 0xff;
+        position = 1;
+        return true;
+    }
+
+    public boolean hasMore(){
+        return position < limit;
+    }
+
+    public long nextLong(){
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = next();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Bad varint");
+    }
+
+    public String nextString(){
+        int length = (int) nextLong();
+        if (length < 0 || length > limit - position) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    private byte next(){
+        if (position >= limit) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * Starts building a new frame, discarding whatever the buffer held.
+     */
+    public Frame begin(int opcode){
+        this.opcode = opcode;
+        buffer[HEADER] = (byte) opcode;
+        position = HEADER + 1;
+        return this;
+    }
+
+    /**
+     * Changes the opcode of the frame being built.
+     */
+    public void setOpcode(int opcode){
+        this.opcode = opcode;
+        buffer[HEADER] = (byte) opcode;
+    }
+
+    public Frame putLong(long value){
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    public Frame putString(String value){
+        int length = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+        if (!ascii) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+            return this;
+        }
+        putLong(length);
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Bytes in the frame being built so far.
+     */
+    public int size(){
+        return position - HEADER;
+    }
+
+    /**
+     * Writes the frame being built to out, prefixed with its length. Does not flush.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        int length = size();
+        int header = 1;
+        while (length >>> (7 * header) != 0) {
+            header++;
+        }
+        int start = HEADER - header;
+        for (int i = 0; i < header; i++) {
+            int b = (length >>> (7 * i)) & 0x7f;
+            buffer[start + i] = (byte) (i < header - 1 ? b | 0x80 : b);
+        }
+        out.write(buffer, start, position - start);
+    }
+
+    private void ensure(int bytes){
+        if (position + bytes > HEADER + MAX_FRAME) {
+            throw new IllegalArgumentException("Frame too large");
+        }
+        if (position + bytes > buffer.length) {
+            byte[] grown = new byte[Math.max(position + bytes, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+}
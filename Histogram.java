@@ -0,0 +1,94 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram in microseconds with HDR-style log-linear buckets: exact below 64us, then 32 buckets per
+ * power of two, so any value is reported to within about 3% from a fixed 8 KiB of counters. Recording is a couple
+ * of shifts and one atomic increment, so it can sit on every request; percentiles are only computed when read.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_SHIFT = 31; //buckets reach about 2^37us, a day and a half
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB;
+
+    private final AtomicLongArray counts;
+    private final LongAdder total; //microseconds, for the mean
+    private final LongAdder count;
+
+    public Histogram(){
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.total = new LongAdder();
+        this.count = new LongAdder();
+    }
+
+    public void record(long micros){
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(bucket(micros));
+        total.add(micros);
+        count.increment();
+    }
+
+    private static int bucket(long value){
+        if (value < 2 * SUB) {
+            return (int) value;
+        }
+        int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - SUB_BITS, MAX_SHIFT);
+        return (int) Math.min(shift * SUB + (value >>> shift), BUCKETS - 1);
+    }
+
+    /**
+     * The largest value that falls in bucket i.
+     */
+    private static long upperBound(int i){
+        if (i < 2 * SUB) {
+            return i;
+        }
+        int shift = i / SUB - 1;
+        return ((long) (i - shift * SUB + 1) << shift) - 1;
+    }
+
+    public long count(){
+        return count.sum();
+    }
+
+    public double mean(){
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /**
+     * The value at or below which the given fraction of recorded values fall, rounded up to its bucket.
+     */
+    public long percentile(double fraction){
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * count, mean and the usual percentiles in microseconds, on one line.
+     */
+    public String summary(){
+        return "count=" + count() + " mean=" + Math.round(mean()) + "us p50=" + percentile(0.5) + "us p90="
+                + percentile(0.9) + "us p99=" + percentile(0.99) + "us p999=" + percentile(0.999) + "us max="
+                + percentile(1.0) + "us";
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Write-ahead log of the Controller's FileIndex, so a restarted Controller knows which files are stored and where.
+ *
+ * Every transition is appended to folder/wal as one line holding the file's whole new state:
+ * STORE_STARTED, STORED and REMOVE_STARTED carry name, size and replica ports, then hash=H if the file has a
+ * content hash, ec=K:PORTS with the Dstore of each shard if it is erasure-coded, chunked=N:SIZE for a file split
+ * into N chunks and chunk for one of those chunks. REMOVED carries just the name. Replaying a line therefore never
+ * depends on the lines before it for the same file. Once snapshotEvery lines have been written the log is compacted: the wal is set aside as wal.old, the current index is written to snapshot in the
+ * same format, and wal.old is deleted. Recovery replays snapshot, wal.old and wal in that order, which gives the
+ * right result whichever step a crash interrupted, then writes what it recovered as the new snapshot before
+ * deleting the logs.
+ *
+ * append only queues the line, so callers holding a FileIndex stripe lock never wait on I/O or on each other. A
+ * single writer thread takes whatever has queued up, writes it, and flushes, and with fsync forces, once per group.
+ * Lines for one file are queued under its stripe lock, so they reach the wal in the order of its transitions.
+ */
+public class IndexLog {
+    private static final Logger logger = Logger.getLogger(IndexLog.class.getName());
+
+    static final String STORE_STARTED = "STORE_STARTED";
+    static final String STORED = "STORED";
+    static final String REMOVE_STARTED = "REMOVE_STARTED";
+    static final String REMOVED = "REMOVED";
+
+    /**
+     * A file's last logged state.
+     */
+    public static class Record {
+        final String filename;
+        final long size;
+        final FileIndex.State state;
+        final List<Integer> replicas;
+        String hash; //null if none
+        int dataShards;
+        List<Integer> shards; //null unless erasure-coded
+        int chunks;
+        long chunkSize;
+        boolean chunk;
+
+        Record(String filename, long size, FileIndex.State state, List<Integer> replicas){
+            this.filename = filename;
+            this.size = size;
+            this.state = state;
+            this.replicas = replicas;
+        }
+
+        Record(FileIndex.Entry entry){
+            this(entry.filename, entry.size, entry.state, entry.replicas);
+            this.hash = entry.hash;
+            this.dataShards = entry.dataShards;
+            this.shards = entry.shards;
+            this.chunks = entry.chunks;
+            this.chunkSize = entry.chunkSize;
+            this.chunk = entry.chunk;
+        }
+    }
+
+    private final Path wal;
+    private final Path oldWal;
+    private final Path snapshot;
+    private final boolean fsync;
+    private final long snapshotEvery;
+    private final BlockingQueue<String> pending; //lines appended but not yet written
+    private BufferedWriter writer; //used by the writer thread only, once recovery has finished
+    private FileChannel channel;
+    private long appended; //lines since the last compaction started
+    private Supplier<Collection<FileIndex.Entry>> entries;
+
+    public IndexLog(Path folder, boolean fsync, long snapshotEvery){
+        this.wal = folder.resolve("wal");
+        this.oldWal = folder.resolve("wal.old");
+        this.snapshot = folder.resolve("snapshot");
+        this.fsync = fsync;
+        this.snapshotEvery = snapshotEvery;
+        this.pending = new LinkedBlockingQueue<>();
+        try {
+            Files.createDirectories(folder);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads back every file's last logged state, then opens the log for appending. entries supplies the live
+     * index for later compactions.
+     */
+    public Collection<Record> recover(Supplier<Collection<FileIndex.Entry>> entries) throws IOException {
+        this.entries = entries;
+        Map<String, Record> files = new HashMap<>();
+        long lines = 0;
+        for (Path path : List.of(snapshot, oldWal, wal)) {
+            if (!Files.exists(path)) {
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    replay(line, files);
+                }
+            }
+        }
+        logger.info("Recovered "+files.size()+" files from "+lines+" index log lines");
+
+        //replaying the logs again over this snapshot gives the same result, so a crash before they are gone is safe
+        List<String> state = new ArrayList<>();
+        for (Record file : files.values()) {
+            if (file.state == FileIndex.State.STORED) {
+                state.add(line(STORED, file));
+            } else if (file.state == FileIndex.State.REMOVE_IN_PROGRESS) {
+                state.add(line(REMOVE_STARTED, file));
+            }
+        }
+        writeSnapshot(state);
+        Files.deleteIfExists(oldWal);
+        Files.deleteIfExists(wal);
+        openWal();
+        Thread writerThread = new Thread(this::write, "index-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        return files.values();
+    }
+
+    private void replay(String line, Map<String, Record> files){
+        String[] parts = line.split(" ");
+        try {
+            if (parts[0].equals(REMOVED)) {
+                files.remove(parts[1]);
+                return;
+            }
+            FileIndex.State state = switch (parts[0]) {
+                case STORE_STARTED -> FileIndex.State.STORE_IN_PROGRESS;
+                case STORED -> FileIndex.State.STORED;
+                case REMOVE_STARTED -> FileIndex.State.REMOVE_IN_PROGRESS;
+                default -> throw new IllegalArgumentException(parts[0]);
+            };
+            Record record = new Record(parts[1], Long.parseLong(parts[2]), state, parts.length > 3 ? ports(parts[3]) : List.of());
+            for (int i = 4; i < parts.length; i++) {
+                if (parts[i].startsWith("hash=")) {
+                    record.hash = parts[i].substring("hash=".length());
+                } else if (parts[i].startsWith("ec=")) {
+                    String[] ec = parts[i].substring("ec=".length()).split(":");
+                    record.dataShards = Integer.parseInt(ec[0]);
+                    record.shards = ports(ec[1]);
+                } else if (parts[i].startsWith("chunked=")) {
+                    String[] chunked = parts[i].substring("chunked=".length()).split(":");
+                    record.chunks = Integer.parseInt(chunked[0]);
+                    record.chunkSize = Long.parseLong(chunked[1]);
+                } else if (parts[i].equals("chunk")) {
+                    record.chunk = true;
+                }
+            }
+            files.put(parts[1], record);
+        } catch (RuntimeException e) {
+            logger.info("Skipping bad index log line: "+line); //most likely the last line, cut short by a crash
+        }
+    }
+
+    /**
+     * Queues entry's current state as a line of the given type, for the writer thread to write.
+     */
+    public void append(String type, FileIndex.Entry entry){
+        pending.add(type.equals(REMOVED) ? type + " " + entry.filename : line(type, new Record(entry)));
+    }
+
+    /**
+     * The writer thread: writes each group of queued lines with one flush, and one force if fsync is set, and
+     * compacts the log once snapshotEvery lines have been written.
+     */
+    private void write(){
+        List<String> group = new ArrayList<>();
+        while (true) {
+            try {
+                group.add(pending.take());
+                pending.drainTo(group);
+                for (String line : group) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+                writer.flush();
+                if (fsync) {
+                    channel.force(false);
+                }
+                appended += group.size();
+                if (appended >= snapshotEvery) {
+                    compact();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                logger.info("Index log write failed: "+e);
+            }
+            group.clear();
+        }
+    }
+
+    /**
+     * Sets the current wal aside and starts writing a snapshot of the live index. The writer thread carries on
+     * into a fresh wal while the snapshot is written.
+     */
+    private void compact() throws IOException {
+        if (Files.exists(oldWal)) {
+            return; //a snapshot is still being written, or an earlier one failed part way; moving the wal would lose what wal.old holds
+        }
+        writer.close();
+        Files.move(wal, oldWal, StandardCopyOption.ATOMIC_MOVE);
+        openWal();
+        appended = 0;
+        new Thread(() -> {
+            try {
+                List<String> state = new ArrayList<>();
+                for (FileIndex.Entry entry : entries.get()) {
+                    if (entry.state == FileIndex.State.STORED) {
+                        state.add(line(STORED, new Record(entry)));
+                    } else if (entry.state == FileIndex.State.REMOVE_IN_PROGRESS) {
+                        state.add(line(REMOVE_STARTED, new Record(entry)));
+                    } //in-progress stores are in the new wal, or have failed
+                }
+                writeSnapshot(state);
+                Files.delete(oldWal);
+            } catch (Exception e) {
+                logger.info("Index snapshot failed: "+e);
+            }
+        }, "index-snapshot").start();
+    }
+
+    private void writeSnapshot(List<String> lines) throws IOException {
+        Path partial = snapshot.resolveSibling("snapshot.part");
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             BufferedWriter snapshotWriter = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(out), StandardCharsets.UTF_8))) {
+            for (String line : lines) {
+                snapshotWriter.write(line);
+                snapshotWriter.newLine();
+            }
+            snapshotWriter.flush();
+            out.force(true);
+        }
+        Files.move(partial, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String line(String type, Record file){
+        StringBuilder line = new StringBuilder(type).append(' ').append(file.filename).append(' ').append(file.size).append(' ');
+        appendPorts(line, file.replicas);
+        if (file.hash != null) {
+            line.append(" hash=").append(file.hash);
+        }
+        if (file.shards != null) {
+            line.append(" ec=").append(file.dataShards).append(':');
+            appendPorts(line, file.shards);
+        }
+        if (file.chunks > 0) {
+            line.append(" chunked=").append(file.chunks).append(':').append(file.chunkSize);
+        }
+        if (file.chunk) {
+            line.append(" chunk");
+        }
+        return line.toString();
+    }
+
+    private static void appendPorts(StringBuilder line, List<Integer> ports){
+        for (int i = 0; i < ports.size(); i++) {
+            line.append(i == 0 ? "" : ",").append(ports.get(i));
+        }
+    }
+
+    private static List<Integer> ports(String field){
+        List<Integer> ports = new ArrayList<>();
+        if (!field.isEmpty()) {
+            for (String port : field.split(",")) {
+                ports.add(Integer.parseInt(port));
+            }
+        }
+        return ports;
+    }
+
+    private void openWal() throws IOException {
+        channel = FileChannel.open(wal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+    }
+}
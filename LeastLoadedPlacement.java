@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Places each file on the Dstores with the fewest replicas per unit of weight. The Dstores are kept ordered by
+ * that load and re-sorted one at a time as their counts change, so a choice is O(R + log N) instead of counting
+ * every Dstore's files.
+ */
+public class LeastLoadedPlacement implements Placement {
+    private final ReentrantLock lock;
+    private final Map<Integer, Integer> counts; //replicas held, including Dstores that have left
+    private final Map<Integer, Integer> weights; //live Dstores only
+    private final TreeSet<Integer> order; //live Dstores, least loaded first
+
+    public LeastLoadedPlacement(){
+        this.lock = new ReentrantLock();
+        this.counts = new HashMap<>();
+        this.weights = new HashMap<>();
+        this.order = new TreeSet<>(Comparator.comparingDouble(this::load).thenComparingInt(port -> port));
+    }
+
+    private double load(int port){
+        return (double) counts.getOrDefault(port, 0) / weights.get(port);
+    }
+
+    @Override
+    public void join(int port, int weight){
+        lock.lock();
+        try {
+            if (weights.containsKey(port)) {
+                order.remove(port); //its position depends on the old weight
+            }
+            weights.put(port, Math.max(1, weight));
+            order.add(port);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void leave(int port){
+        lock.lock();
+        try {
+            if (weights.containsKey(port)) {
+                order.remove(port);
+                weights.remove(port);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int weight(int port){
+        lock.lock();
+        try {
+            return weights.getOrDefault(port, 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void replicaAdded(int port){
+        adjust(port, 1);
+    }
+
+    @Override
+    public void replicaRemoved(int port){
+        adjust(port, -1);
+    }
+
+    private void adjust(int port, int delta){
+        lock.lock();
+        try {
+            boolean live = weights.containsKey(port) && order.remove(port); //must leave the set before its key changes
+            counts.merge(port, delta, Integer::sum);
+            if (live) {
+                order.add(port);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Integer> choose(String filename, int count){
+        lock.lock();
+        try {
+            List<Integer> chosen = new ArrayList<>(count);
+            Iterator<Integer> ports = order.iterator();
+            while (chosen.size() < count && ports.hasNext()) {
+                chosen.add(ports.next());
+            }
+            return chosen;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms for one Controller or Dstore. Counters are LongAdders and histograms
+ * are lock-free, so recording costs a map lookup and an add and can be done on every request. Gauges are read
+ * from their owners only when the metrics are, e.g. queue lengths and pending acks.
+ *
+ * Latencies are recorded by name, in microseconds: the message token for the time a request took to handle, and
+ * on the Controller STORE.complete and REMOVE.complete from the request to its COMPLETE.
+ */
+public class Metrics implements MetricsMXBean {
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    private final ConcurrentHashMap<String, LongAdder> counters;
+    private final ConcurrentHashMap<String, LongSupplier> gauges;
+    private final ConcurrentHashMap<String, Histogram> latencies;
+
+    public Metrics(){
+        this.counters = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+        this.latencies = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Publishes these metrics over JMX under name, logging rather than failing if that is not possible.
+     */
+    public void register(String name){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+        } catch (Exception e) {
+            logger.info("Could not publish metrics: "+e);
+        }
+    }
+
+    public void increment(String counter){
+        add(counter, 1);
+    }
+
+    public void add(String counter, long amount){
+        LongAdder adder = counters.get(counter);
+        if (adder == null) {
+            adder = counters.computeIfAbsent(counter, k -> new LongAdder());
+        }
+        adder.add(amount);
+    }
+
+    /**
+     * Records the time since startNanos, a System.nanoTime reading, under name.
+     */
+    public void record(String name, long startNanos){
+        Histogram histogram = latencies.get(name);
+        if (histogram == null) {
+            histogram = latencies.computeIfAbsent(name, k -> new Histogram());
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public void gauge(String name, LongSupplier value){
+        gauges.put(name, value);
+    }
+
+    public void removeGauge(String name){
+        gauges.remove(name);
+    }
+
+    @Override
+    public Map<String, Long> getCounters(){
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, adder) -> values.put(name, adder.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges(){
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public Map<String, String> getLatencies(){
+        Map<String, String> values = new TreeMap<>();
+        latencies.forEach((name, histogram) -> values.put(name, histogram.summary()));
+        return values;
+    }
+
+    @Override
+    public String getReport(){
+        StringBuilder report = new StringBuilder();
+        getCounters().forEach((name, value) -> report.append("counter ").append(name).append(' ').append(value).append('\n'));
+        getGauges().forEach((name, value) -> report.append("gauge ").append(name).append(' ').append(value).append('\n'));
+        getLatencies().forEach((name, value) -> report.append("latency ").append(name).append(' ').append(value).append('\n'));
+        return report.toString();
+    }
+}
@@ -0,0 +1,19 @@
+import java.util.Map;
+
+/**
+ * A process's Metrics, published over JMX as Controller:type=Metrics or Dstore:type=Metrics,port=N.
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+    Map<String, Long> getGauges();
+
+    /**
+     * count, mean and percentiles of each latency histogram, in microseconds.
+     */
+    Map<String, String> getLatencies();
+
+    /**
+     * Everything above as text, one metric per line.
+     */
+    String getReport();
+}
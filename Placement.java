@@ -0,0 +1,45 @@
+import java.util.List;
+
+/**
+ * Chooses the Dstores a new file is stored on. The Controller tells it which Dstores are live and, through
+ * FileIndex, every time a replica is added to or removed from one, so a choice never has to scan the index.
+ *
+ * The strategy is chosen with the "placement" system property: "least-loaded" (default) picks the Dstores holding
+ * the fewest files for their weight; "hash" places files on a consistent-hash ring, so adding or removing a Dstore
+ * only moves the files next to it on the ring.
+ */
+public interface Placement {
+
+    static Placement fromProperties(){
+        String strategy = System.getProperty("placement", "least-loaded");
+        switch (strategy) {
+            case "least-loaded":
+                return new LeastLoadedPlacement();
+            case "hash":
+                return new ConsistentHashPlacement();
+            default:
+                throw new IllegalArgumentException("Unknown placement strategy: " + strategy);
+        }
+    }
+
+    /**
+     * Adds a Dstore with the given capacity weight, relative to the default of 1.
+     */
+    void join(int port, int weight);
+
+    void leave(int port);
+
+    /**
+     * The weight port joined with, or 1 if it is not live.
+     */
+    int weight(int port);
+
+    void replicaAdded(int port);
+
+    void replicaRemoved(int port);
+
+    /**
+     * Returns up to count distinct live Dstores to store filename on; fewer only if fewer are live.
+     */
+    List<Integer> choose(String filename, int count);
+}
@@ -1,34 +1,57 @@
-/**
- * This class defines the String tokens you can use when implementing the communication protocol for the COMP2207 24/25 Coursework
- *
- */
-
-public class Protocol {
-
-	// messages sent by Clients
-	public final static String LIST_TOKEN = "LIST"; // also from Controller and Dstores
-	public final static String STORE_TOKEN = "STORE"; // also from Dstores
-	public final static String LOAD_TOKEN = "LOAD";
-	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
-	public final static String RELOAD_TOKEN = "RELOAD";
-	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
-	
-	// messages sent by the Controller
-	public final static String STORE_TO_TOKEN = "STORE_TO";
-	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
-	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
-	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
-	public final static String REBALANCE_TOKEN = "REBALANCE";
-	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
-	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
-	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
-	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
-	
-	// messages sent by Dstores
-	public final static String ACK_TOKEN = "ACK";
-	public final static String STORE_ACK_TOKEN = "STORE_ACK";
-	public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
-	public final static String JOIN_TOKEN = "JOIN";
-	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
-	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
-}
+/**
+ * This class defines the String tokens you can use when implementing the communication protocol for the COMP2207 24/25 Coursework
+ *
+ */
+
+public class Protocol {
+
+	// messages sent by Clients
+	public final static String LIST_TOKEN = "LIST"; // also from Controller and Dstores
+	public final static String STORE_TOKEN = "STORE"; // also from Dstores
+	public final static String LOAD_TOKEN = "LOAD";
+	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
+	public final static String RELOAD_TOKEN = "RELOAD";
+	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+	public final static String LIST_PAGE_TOKEN = "LIST_PAGE"; // also from Controller
+	public final static String STORE_BATCH_TOKEN = "STORE_BATCH"; // also to Dstores
+	public final static String LOAD_BATCH_TOKEN = "LOAD_BATCH";
+	public final static String LOAD_DATA_BATCH_TOKEN = "LOAD_DATA_BATCH";
+	public final static String REMOVE_BATCH_TOKEN = "REMOVE_BATCH";
+	public final static String STORE_PIPELINE_TOKEN = "STORE_PIPELINE"; // also from Dstores, forwarding down the pipeline
+	public final static String STORE_EC_TOKEN = "STORE_EC";
+	
+	// messages sent by the Controller
+	public final static String STORE_TO_TOKEN = "STORE_TO";
+	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
+	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
+	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
+	public final static String REBALANCE_TOKEN = "REBALANCE";
+	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
+	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
+	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
+	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+	public final static String STORE_BATCH_TO_TOKEN = "STORE_BATCH_TO";
+	public final static String STORE_BATCH_COMPLETE_TOKEN = "STORE_BATCH_COMPLETE";
+	public final static String LOAD_BATCH_FROM_TOKEN = "LOAD_BATCH_FROM";
+	public final static String REMOVE_BATCH_COMPLETE_TOKEN = "REMOVE_BATCH_COMPLETE";
+	public final static String ERROR_INCOMPLETE_TOKEN = "ERROR_INCOMPLETE"; // batch outcome of a file whose operation timed out or lost a Dstore
+	public final static String HEARTBEAT_TOKEN = "HEARTBEAT";
+	public final static String LINK_TOKEN = "LINK";
+	public final static String LOAD_EC_FROM_TOKEN = "LOAD_EC_FROM";
+	public final static String REBUILD_TOKEN = "REBUILD";
+	public final static String STORE_CHUNKS_TO_TOKEN = "STORE_CHUNKS_TO";
+	public final static String LOAD_CHUNKS_FROM_TOKEN = "LOAD_CHUNKS_FROM";
+	
+	// messages sent by Dstores
+	public final static String ACK_TOKEN = "ACK";
+	public final static String STORE_ACK_TOKEN = "STORE_ACK";
+	public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
+	public final static String JOIN_TOKEN = "JOIN";
+	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
+	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String STORE_BATCH_ACK_TOKEN = "STORE_BATCH_ACK";
+	public final static String LIST_DELTA_TOKEN = "LIST_DELTA"; // also from Controller
+	public final static String HEARTBEAT_ACK_TOKEN = "HEARTBEAT_ACK";
+	public final static String LINK_FAILED_TOKEN = "LINK_FAILED";
+	public final static String REBUILD_ACK_TOKEN = "REBUILD_ACK";
+}
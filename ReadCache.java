@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the contents of recently loaded small files in direct buffers so repeated LOAD_DATA requests for them are
+ * served from memory without touching the disk. The cache holds at most capacity bytes and evicts the least
+ * recently used files first; files over maxFileSize are never cached.
+ *
+ * Callers must invalidate a file whenever it is removed or replaced. A load that overlaps an invalidation is not
+ * cached, so an old copy can never be put back after the file has changed.
+ */
+public class ReadCache implements ReadCacheMXBean {
+
+    private final long capacity;
+    private final long maxFileSize;
+    private final ReentrantLock lock;
+    private final LinkedHashMap<String, ByteBuffer> files; //access order, least recently used first
+    private long bytes;
+    private final AtomicLong invalidations;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    public ReadCache(long capacity, long maxFileSize){
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, capacity);
+        this.lock = new ReentrantLock();
+        this.files = new LinkedHashMap<>(16, 0.75f, true);
+        this.invalidations = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Returns a read-only view of filename's contents, reading it from path and caching it on a miss. Returns
+     * null if the file is too large to cache, in which case the caller should send it from disk.
+     */
+    public ByteBuffer get(String filename, Path path) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer cached = files.get(filename);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.asReadOnlyBuffer();
+            }
+        } finally {
+            lock.unlock();
+        }
+        long generation = invalidations.get();
+        ByteBuffer contents;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > maxFileSize) {
+                return null;
+            }
+            misses.incrementAndGet();
+            contents = ByteBuffer.allocateDirect((int) size);
+            while (contents.hasRemaining()) {
+                if (channel.read(contents) < 0) {
+                    break;
+                }
+            }
+            contents.flip();
+        }
+
+        lock.lock();
+        try {
+            if (invalidations.get() == generation && !files.containsKey(filename)) {
+                files.put(filename, contents);
+                bytes += contents.capacity();
+                evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return contents.asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops filename from the cache. Must be called after the file on disk has been removed or replaced.
+     */
+    public void invalidate(String filename){
+        invalidations.incrementAndGet();
+        lock.lock();
+        try {
+            ByteBuffer removed = files.remove(filename);
+            if (removed != null) {
+                bytes -= removed.capacity();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evict(){
+        Iterator<Map.Entry<String, ByteBuffer>> oldest = files.entrySet().iterator();
+        while (bytes > capacity && oldest.hasNext()) {
+            bytes -= oldest.next().getValue().capacity();
+            oldest.remove();
+            evictions.incrementAndGet(); //the buffer's memory is released once in-flight sends are done with it
+        }
+    }
+
+    @Override
+    public long getHits(){
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses(){
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions(){
+        return evictions.get();
+    }
+
+    @Override
+    public long getBytes(){
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getFiles(){
+        lock.lock();
+        try {
+            return files.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
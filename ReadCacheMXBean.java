@@ -0,0 +1,10 @@
+/**
+ * The counters of a Dstore's ReadCache, published over JMX as Dstore:type=ReadCache,port=N.
+ */
+public interface ReadCacheMXBean {
+    long getHits();
+    long getMisses();
+    long getEvictions();
+    long getBytes();
+    int getFiles();
+}
@@ -0,0 +1,354 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Works out the smallest set of Dstore-to-Dstore transfers and deletions that gives every stored file exactly
+ * repFactor replicas and leaves each Dstore holding between floor(F*R/N) and ceil(F*R/N) files. When Dstores
+ * have different weights each one's bounds are taken from its weighted share of F*R instead.
+ *
+ * Files are only moved when a replica is missing or surplus, or a Dstore is outside those bounds, and a file
+ * that is about to be copied somewhere is retargeted rather than copied and then moved again.
+ *
+ * With consistent-hash placement every file has fixed owners on the ring instead, and toOwners plans the moves that
+ * put it there, leaving file counts for the ring to even out.
+ */
+public class RebalancePlanner {
+
+    public static class Plan {
+        final Map<Integer, Map<String, List<Integer>>> sends; //source -> file -> targets
+        final Map<Integer, Set<String>> removes; //dstore -> files to delete
+
+        Plan(){
+            this.sends = new TreeMap<>();
+            this.removes = new TreeMap<>();
+        }
+
+        boolean isEmpty(){
+            return sends.isEmpty() && removes.isEmpty();
+        }
+
+        /**
+         * Dstores that have something to do in this plan.
+         */
+        Set<Integer> dstores(){
+            Set<Integer> ports = new TreeSet<>(sends.keySet());
+            ports.addAll(removes.keySet());
+            return ports;
+        }
+
+        /**
+         * REBALANCE files_to_send files_to_remove, where files_to_send is the number of files followed by each
+         * file, its number of targets and their ports, and files_to_remove is the number of files followed by them.
+         */
+        String messageFor(int port){
+            StringBuilder message = new StringBuilder(Protocol.REBALANCE_TOKEN);
+            Map<String, List<Integer>> toSend = sends.getOrDefault(port, Map.of());
+            message.append(' ').append(toSend.size());
+            for (Map.Entry<String, List<Integer>> send : toSend.entrySet()) {
+                message.append(' ').append(send.getKey()).append(' ').append(send.getValue().size());
+                for (int target : send.getValue()) {
+                    message.append(' ').append(target);
+                }
+            }
+            Set<String> toRemove = removes.getOrDefault(port, Set.of());
+            message.append(' ').append(toRemove.size());
+            for (String file : toRemove) {
+                message.append(' ').append(file);
+            }
+            return message.toString();
+        }
+
+        private void send(int source, String file, int target){
+            sends.computeIfAbsent(source, k -> new TreeMap<>()).computeIfAbsent(file, k -> new ArrayList<>()).add(target);
+        }
+
+        private void unsend(int source, String file, int target){
+            Map<String, List<Integer>> files = sends.get(source);
+            List<Integer> targets = files.get(file);
+            targets.remove(Integer.valueOf(target));
+            if (targets.isEmpty()) {
+                files.remove(file);
+                if (files.isEmpty()) {
+                    sends.remove(source);
+                }
+            }
+        }
+
+        private void remove(int port, String file){
+            removes.computeIfAbsent(port, k -> new TreeSet<>()).add(file);
+        }
+    }
+
+    /**
+     * @param holdings what each responding Dstore reported in its LIST
+     * @param weights capacity weight of each Dstore, 1 if missing
+     * @param stored files that are fully stored and should have repFactor replicas
+     * @param inProgress files left exactly where they are: those with a store in progress, and erasure-coded files
+     * @return the plan; any listed file in neither set is deleted from every Dstore that holds it
+     */
+    public static Plan plan(Map<Integer, ? extends Collection<String>> holdings, Map<Integer, Integer> weights, Set<String> stored,
+                            Set<String> inProgress, int repFactor){
+        Plan plan = new Plan();
+        Map<Integer, Set<String>> after = new TreeMap<>(); //projected holdings of stored files once the plan has run
+        Map<String, Set<Integer>> holders = new TreeMap<>();
+        for (Map.Entry<Integer, ? extends Collection<String>> dstore : holdings.entrySet()) {
+            int port = dstore.getKey();
+            Set<String> files = new HashSet<>();
+            for (String file : dstore.getValue()) {
+                if (stored.contains(file)) {
+                    files.add(file);
+                    holders.computeIfAbsent(file, k -> new TreeSet<>()).add(port);
+                } else if (!inProgress.contains(file)) {
+                    plan.remove(port, file);
+                }
+            }
+            after.put(port, files);
+        }
+        Map<Integer, Map<String, Integer>> added = new HashMap<>(); //target -> file -> source, for planned copies
+
+        for (Map.Entry<String, Set<Integer>> file : holders.entrySet()) {
+            String name = file.getKey();
+            Set<Integer> have = file.getValue();
+            while (have.size() > repFactor) {
+                int port = busiest(have, after, weights);
+                have.remove(port);
+                after.get(port).remove(name);
+                plan.remove(port, name);
+            }
+            int source = have.iterator().next(); //taken before any copies are planned, so it already holds the file
+            while (have.size() < repFactor) {
+                Integer target = idlest(after.keySet(), have, after, weights);
+                if (target == null) {
+                    break; //fewer Dstores than repFactor
+                }
+                plan.send(source, name, target);
+                added.computeIfAbsent(target, k -> new LinkedHashMap<>()).put(name, source);
+                have.add(target);
+                after.get(target).add(name);
+            }
+        }
+
+        long total = 0;
+        long totalWeight = 0;
+        for (Map.Entry<Integer, Set<String>> dstore : after.entrySet()) {
+            total += dstore.getValue().size();
+            totalWeight += weight(dstore.getKey(), weights);
+        }
+        if (after.isEmpty()) {
+            return plan;
+        }
+        List<Integer> ports = new ArrayList<>(after.keySet());
+        Map<Integer, Long> excess = new HashMap<>();
+        while (true) {
+            //excess is files held minus weighted share of the total, scaled by totalWeight to stay exact; a Dstore is
+            //within its floor and ceil exactly when its excess is less than one file either way
+            for (int port : ports) {
+                excess.put(port, after.get(port).size() * totalWeight - total * weight(port, weights));
+            }
+            ports.sort(Comparator.comparingLong(excess::get).reversed());
+            long over = excess.get(ports.get(0));
+            long under = excess.get(ports.get(ports.size() - 1));
+            if (over < totalWeight && under > -totalWeight) {
+                break;
+            }
+
+            //move a file from the most loaded Dstore that can give one to the least loaded that lacks it, as long as
+            //that brings them closer together and one of them is out of bounds
+            int from = -1;
+            int to = -1;
+            String file = null;
+            search:
+            for (int i = 0; i < ports.size(); i++) {
+                long giving = excess.get(ports.get(i));
+                for (int j = ports.size() - 1; j > i && giving - excess.get(ports.get(j)) > totalWeight; j--) {
+                    if (giving < totalWeight && excess.get(ports.get(j)) > -totalWeight) {
+                        continue;
+                    }
+                    file = movable(after.get(ports.get(i)), after.get(ports.get(j)));
+                    if (file != null) {
+                        from = ports.get(i);
+                        to = ports.get(j);
+                        break search;
+                    }
+                }
+            }
+            if (file == null) {
+                break;
+            }
+
+            Map<String, Integer> plannedCopies = added.get(from);
+            Integer source = plannedCopies == null ? null : plannedCopies.remove(file);
+            if (source != null) {
+                plan.unsend(source, file, from); //not copied there yet, so just don't
+            } else {
+                source = from;
+                plan.remove(from, file);
+            }
+            if (plan.removes.containsKey(to) && plan.removes.get(to).remove(file)) {
+                if (plan.removes.get(to).isEmpty()) {
+                    plan.removes.remove(to); //it still has the copy it was going to delete
+                }
+            } else {
+                plan.send(source, file, to);
+                added.computeIfAbsent(to, k -> new LinkedHashMap<>()).put(file, source);
+            }
+            after.get(from).remove(file);
+            after.get(to).add(file);
+        }
+        return plan;
+    }
+
+    /**
+     * Plans the transfers and deletions that leave every stored file on exactly the Dstores owners names for it.
+     * Files already on their owners are not touched, so when a Dstore joins or leaves the ring only the files whose
+     * owners changed move. A copy is sent, where possible, from a holder that is about to delete the file, since a
+     * Dstore keeps a file whose copy failed.
+     *
+     * @param holdings what each Dstore holds, from its LIST or the index
+     * @param stored files that are fully stored and should be on their owners
+     * @param inProgress files left exactly where they are
+     * @param owners the Dstores among those in holdings that each stored file belongs on
+     * @return the plan; any listed file in neither set is deleted from every Dstore that holds it
+     */
+    public static Plan toOwners(Map<Integer, ? extends Collection<String>> holdings, Set<String> stored, Set<String> inProgress,
+                                Function<String, List<Integer>> owners){
+        Plan plan = new Plan();
+        Map<String, Set<Integer>> holders = new TreeMap<>();
+        for (Map.Entry<Integer, ? extends Collection<String>> dstore : holdings.entrySet()) {
+            for (String file : dstore.getValue()) {
+                if (stored.contains(file)) {
+                    holders.computeIfAbsent(file, k -> new TreeSet<>()).add(dstore.getKey());
+                } else if (!inProgress.contains(file)) {
+                    plan.remove(dstore.getKey(), file);
+                }
+            }
+        }
+        Map<Integer, Integer> sending = new HashMap<>();
+        for (Map.Entry<String, Set<Integer>> file : holders.entrySet()) {
+            String name = file.getKey();
+            Set<Integer> have = file.getValue();
+            List<Integer> wanted = owners.apply(name);
+            if (wanted.isEmpty()) {
+                continue;
+            }
+            Set<Integer> leaving = new TreeSet<>(have);
+            leaving.removeAll(wanted);
+            for (int target : wanted) {
+                if (!have.contains(target)) {
+                    int source = leastSending(leaving.isEmpty() ? have : leaving, sending);
+                    plan.send(source, name, target);
+                    sending.merge(source, 1, Integer::sum);
+                }
+            }
+            for (int port : leaving) {
+                plan.remove(port, name);
+            }
+        }
+        return plan;
+    }
+
+    private static int leastSending(Collection<Integer> ports, Map<Integer, Integer> sending){
+        int best = -1;
+        for (int port : ports) {
+            if (best == -1 || sending.getOrDefault(port, 0) < sending.getOrDefault(best, 0)) {
+                best = port;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Plans only the copies that bring each given file back up to repFactor replicas, as needed right after a
+     * Dstore fails. Each copy goes to the least loaded Dstore that lacks the file and comes from whichever holder
+     * has been given the fewest copies to send so far. Nothing is deleted or evened out; the next full plan does that.
+     *
+     * @param holders live Dstores holding each file that is short of replicas
+     * @param counts files held by each live Dstore
+     * @param weights capacity weight of each Dstore, 1 if missing
+     */
+    public static Plan repair(Map<String, ? extends Collection<Integer>> holders, Map<Integer, Integer> counts,
+                              Map<Integer, Integer> weights, int repFactor){
+        Plan plan = new Plan();
+        Map<Integer, Integer> load = new TreeMap<>(counts);
+        Map<Integer, Integer> sending = new HashMap<>();
+        for (Map.Entry<String, ? extends Collection<Integer>> file : holders.entrySet()) {
+            Set<Integer> have = new TreeSet<>(file.getValue());
+            Integer source = null;
+            for (int port : have) {
+                if (source == null || sending.getOrDefault(port, 0) < sending.getOrDefault(source, 0)) {
+                    source = port;
+                }
+            }
+            if (source == null) {
+                continue;
+            }
+            while (have.size() < repFactor) {
+                Integer target = null;
+                for (int port : load.keySet()) {
+                    if (!have.contains(port) && (target == null
+                            || (long) load.get(port) * weight(target, weights) < (long) load.get(target) * weight(port, weights))) {
+                        target = port;
+                    }
+                }
+                if (target == null) {
+                    break; //fewer Dstores than repFactor
+                }
+                plan.send(source, file.getKey(), target);
+                sending.merge(source, 1, Integer::sum);
+                load.merge(target, 1, Integer::sum);
+                have.add(target);
+            }
+        }
+        return plan;
+    }
+
+    private static String movable(Set<String> from, Set<String> to){
+        for (String file : from) {
+            if (!to.contains(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static int weight(int port, Map<Integer, Integer> weights){
+        return weights.getOrDefault(port, 1);
+    }
+
+    /**
+     * Compares the files per unit of weight held by two Dstores.
+     */
+    private static int compareLoad(int a, int b, Map<Integer, Set<String>> after, Map<Integer, Integer> weights){
+        return Long.compare((long) after.get(a).size() * weight(b, weights), (long) after.get(b).size() * weight(a, weights));
+    }
+
+    private static int busiest(Collection<Integer> ports, Map<Integer, Set<String>> after, Map<Integer, Integer> weights){
+        int best = -1;
+        for (int port : ports) {
+            if (best == -1 || compareLoad(port, best, after, weights) > 0) {
+                best = port;
+            }
+        }
+        return best;
+    }
+
+    private static Integer idlest(Collection<Integer> ports, Set<Integer> exclude, Map<Integer, Set<String>> after, Map<Integer, Integer> weights){
+        Integer best = null;
+        for (int port : ports) {
+            if (!exclude.contains(port) && (best == null || compareLoad(port, best, after, weights) < 0)) {
+                best = port;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * A systematic Reed-Solomon code over GF(2^8) with k data shards and m parity shards: the data shards are the file
+ * itself cut into k equal pieces, and any k of the k+m shards are enough to get every other one back.
+ *
+ * The encoding matrix is a (k+m) x k Vandermonde matrix multiplied by the inverse of its top k rows, so its top k
+ * rows are the identity and any k of its rows are still invertible. Shards are byte arrays of the same length, and
+ * both encode and reconstruct work on a range of them, so large shards can be coded a block at a time as they are
+ * read or written.
+ */
+public class ReedSolomon {
+    private static final int POLYNOMIAL = 0x11D;
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MULTIPLY = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MULTIPLY[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int totalShards;
+    private final byte[][] matrix; //totalShards x dataShards
+
+    public ReedSolomon(int dataShards, int parityShards){
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("Unsupported shard counts " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.totalShards = dataShards + parityShards;
+        byte[][] vandermonde = new byte[totalShards][dataShards];
+        for (int r = 0; r < totalShards; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power(r, c);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    /**
+     * The size of each shard of a file of filesize bytes; the last data shard is padded with zeros.
+     */
+    public static long shardSize(long filesize, int dataShards){
+        return (filesize + dataShards - 1) / dataShards;
+    }
+
+    /**
+     * Computes the parity shards from the data shards, shards[0..k), over the given range of each.
+     */
+    public void encode(byte[][] shards, int offset, int length){
+        for (int p = dataShards; p < totalShards; p++) {
+            code(matrix[p], shards, 0, shards[p], offset, length);
+        }
+    }
+
+    /**
+     * Fills in each shard that is not present from k that are, over the given range of each. Missing shards that
+     * are null are skipped, so a caller that needs only one shard back allocates only that one.
+     *
+     * @throws IllegalArgumentException if fewer than k shards are present
+     */
+    public void reconstruct(byte[][] shards, boolean[] present, int offset, int length){
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < totalShards && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards, have " + found);
+        }
+        byte[][] sub = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            sub[i] = matrix[rows[i]];
+            inputs[i] = shards[rows[i]];
+        }
+        byte[][] decode = invert(sub); //present shards -> data shards
+        for (int i = 0; i < totalShards; i++) {
+            if (present[i] || shards[i] == null) {
+                continue;
+            }
+            //row i of the encoding matrix applied to the data, as recovered from the present shards
+            code(multiply(new byte[][]{matrix[i]}, decode)[0], inputs, 0, shards[i], offset, length);
+        }
+    }
+
+    /**
+     * output = sum of coefficients[j] * inputs[first + j] over the range, in GF(2^8).
+     */
+    private static void code(byte[] coefficients, byte[][] inputs, int first, byte[] output, int offset, int length){
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            output[i] = 0;
+        }
+        for (int j = 0; j < coefficients.length; j++) {
+            int c = coefficients[j] & 0xFF;
+            if (c == 0) {
+                continue;
+            }
+            byte[] input = inputs[first + j];
+            if (c == 1) {
+                for (int i = offset; i < end; i++) {
+                    output[i] ^= input[i];
+                }
+            } else {
+                byte[] row = MULTIPLY[c];
+                for (int i = offset; i < end; i++) {
+                    output[i] ^= row[input[i] & 0xFF];
+                }
+            }
+        }
+    }
+
+    private static byte power(int a, int n){
+        if (n == 0) {
+            return 1;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b){
+        byte[][] product = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                int sum = 0;
+                for (int i = 0; i < b.length; i++) {
+                    sum ^= MULTIPLY[a[r][i] & 0xFF][b[i][c] & 0xFF];
+                }
+                product[r][c] = (byte) sum;
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Gauss-Jordan elimination on a copy of the square matrix.
+     */
+    private static byte[][] invert(byte[][] square){
+        int n = square.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(square[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("Singular matrix");
+            }
+            byte[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+            byte[] scale = MULTIPLY[EXP[255 - LOG[work[c][c] & 0xFF]] & 0xFF];
+            for (int i = 0; i < 2 * n; i++) {
+                work[c][i] = scale[work[c][i] & 0xFF];
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = work[r][c] & 0xFF;
+                if (r != c && factor != 0) {
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[r][i] ^= MULTIPLY[factor][work[c][i] & 0xFF];
+                    }
+                }
+            }
+        }
+        byte[][] inverse = new byte[n][n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(work[r], n, inverse[r], 0, n);
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which replica serves a LOAD or RELOAD using power-of-two-choices: two replicas are sampled at random and
+ * the better one is used, so readers of a popular file spread over all its replicas while slow or failing Dstores
+ * get less traffic.
+ *
+ * Of the two, a replica with a clearly lower recent failure rate wins; otherwise the one with the lower score,
+ * its outstanding loads times its recent load latency. Failure rates decay over time, so a Dstore that has
+ * recovered gets its share back even if nobody is sent to it. The Controller never sees LOAD_DATA itself, so a
+ * load counts as finished when the client sends its next request or disconnects, and as failed when the client
+ * asks for a RELOAD.
+ */
+public class ReplicaSelector {
+    private static final double ALPHA = 0.2; //weight of the newest sample in each moving average
+    private static final double FAILURE_MARGIN = 0.05; //failure rates closer than this count as equal
+    private static final long FAILURE_HALF_LIFE = TimeUnit.SECONDS.toNanos(10);
+
+    private static class Stats {
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile double latencyMillis; //exponentially weighted, 0 until the first load finishes
+        volatile double failureRate; //exponentially weighted fraction of loads ending in RELOAD, as of failureTime
+        volatile long failureTime;
+
+        double failures(long now){
+            return failureRate * Math.pow(0.5, (double) (now - failureTime) / FAILURE_HALF_LIFE);
+        }
+
+        void recordOutcome(boolean failed){
+            long now = System.nanoTime();
+            failureRate = failures(now) * (1 - ALPHA) + (failed ? ALPHA : 0);
+            failureTime = now;
+        }
+
+        double score(){
+            return (outstanding.get() + 1) * Math.max(latencyMillis, 1);
+        }
+    }
+
+    /**
+     * A client's current load: the replica it was sent to and those it has not tried yet.
+     */
+    public static class Load {
+        final List<Integer> untried;
+        int port;
+        long started;
+
+        private Load(List<Integer> untried){
+            this.untried = untried;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Stats> stats;
+
+    public ReplicaSelector(){
+        this.stats = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts a load from one of replicas, which must not be empty.
+     */
+    public Load begin(List<Integer> replicas){
+        Load load = new Load(new ArrayList<>(replicas));
+        start(load);
+        return load;
+    }
+
+    /**
+     * Picks one of replicas as begin would, without tracking a load on it. Used for batch loads, whose end the
+     * Controller cannot see.
+     */
+    public int choose(List<Integer> replicas){
+        return pick(replicas);
+    }
+
+    /**
+     * Records that the current replica failed and moves the load to the best replica left among those still
+     * live. Returns false if none are left.
+     */
+    public boolean retry(Load load, Collection<Integer> live){
+        finish(load, true);
+        load.untried.retainAll(live);
+        if (load.untried.isEmpty()) {
+            return false;
+        }
+        start(load);
+        return true;
+    }
+
+    /**
+     * Records that the current replica served the load.
+     */
+    public void end(Load load){
+        finish(load, false);
+    }
+
+    public void forget(int port){
+        stats.remove(port);
+    }
+
+    private void start(Load load){
+        int port = pick(load.untried);
+        load.untried.remove(Integer.valueOf(port));
+        load.port = port;
+        load.started = System.nanoTime();
+        statsFor(port).outstanding.incrementAndGet();
+    }
+
+    private void finish(Load load, boolean failed){
+        if (load.port == -1) {
+            return; //already finished
+        }
+        Stats s = stats.get(load.port);
+        load.port = -1;
+        if (s == null) {
+            return; //the Dstore has left since
+        }
+        s.outstanding.decrementAndGet();
+        s.recordOutcome(failed);
+        if (!failed) {
+            double millis = (System.nanoTime() - load.started) / 1e6;
+            s.latencyMillis = s.latencyMillis == 0 ? millis : s.latencyMillis * (1 - ALPHA) + millis * ALPHA;
+        }
+    }
+
+    private int pick(List<Integer> candidates){
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(candidates.size());
+        int b = random.nextInt(candidates.size() - 1);
+        if (b >= a) {
+            b++; //two distinct replicas
+        }
+        int first = candidates.get(a);
+        int second = candidates.get(b);
+        Stats x = statsFor(first);
+        Stats y = statsFor(second);
+        long now = System.nanoTime();
+        double failures = x.failures(now) - y.failures(now);
+        if (Math.abs(failures) > FAILURE_MARGIN) {
+            return failures < 0 ? first : second; //failed loads return quickly, so latency alone would favour them
+        }
+        return x.score() <= y.score() ? first : second;
+    }
+
+    private Stats statsFor(int port){
+        return stats.computeIfAbsent(port, k -> new Stats());
+    }
+}
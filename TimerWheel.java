@@ -0,0 +1,180 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel run by a single daemon thread. Deadlines hash into one of a fixed number of buckets by
+ * expiry tick, so scheduling and cancelling are O(1) however many operations are waiting. Expired tasks run on
+ * the wheel thread and should be short.
+ */
+public class TimerWheel {
+    private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+
+    public static class Timeout {
+        private final Runnable task;
+        private long rounds; //full turns of the wheel left before this expires
+        private Bucket bucket; //null once expired or cancelled
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task){
+            this.task = task;
+        }
+
+        /**
+         * Cancels this timeout if it has not yet fired. Returns false if it already expired or was cancelled.
+         */
+        public boolean cancel(){
+            Bucket b = bucket;
+            return b != null && b.unlink(this);
+        }
+    }
+
+    private final class Bucket {
+        private Timeout head;
+        private long lastTick; //tick at which this bucket was last expired
+
+        Bucket(long lastTick){
+            this.lastTick = lastTick;
+        }
+
+        /**
+         * Links t to expire at tick due, which must map to this bucket. Returns false if this bucket has already
+         * been expired for that tick, in which case the caller should pick a later one.
+         */
+        synchronized boolean link(Timeout t, long due){
+            if (due <= lastTick) {
+                return false;
+            }
+            t.rounds = (due - lastTick) / wheel.length - 1;
+            t.bucket = this;
+            t.next = head;
+            if (head != null) {
+                head.prev = t;
+            }
+            head = t;
+            pending.incrementAndGet();
+            return true;
+        }
+
+        synchronized boolean unlink(Timeout t){
+            if (t.bucket != this) {
+                return false;
+            }
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            pending.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Unlinks every timeout due this turn and returns them as a chain, leaving later rounds in place.
+         */
+        synchronized Timeout expire(long now){
+            lastTick = now;
+            Timeout expired = null;
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.rounds <= 0) {
+                    unlink(t);
+                    t.next = expired;
+                    expired = t;
+                } else {
+                    t.rounds--;
+                }
+                t = next;
+            }
+            return expired;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final long startTime;
+    private final AtomicInteger pending;
+    private final AtomicLong timedOut;
+    private volatile long tick; //ticks processed so far
+
+    public TimerWheel(long tickMillis, int buckets){
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new Bucket(i == 0 ? 0 : i - buckets); //tick 0 counts as already processed
+        }
+        this.pending = new AtomicInteger();
+        this.timedOut = new AtomicLong();
+        this.startTime = System.nanoTime();
+
+        Thread worker = new Thread(this::run, "timer-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Runs task on the wheel thread once delayMillis have passed, unless the returned Timeout is cancelled first.
+     */
+    public Timeout schedule(Runnable task, long delayMillis){
+        Timeout t = new Timeout(task);
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long due = (deadline + tickNanos - 1) / tickNanos;
+        while (true) {
+            due = Math.max(due, tick + 1);
+            if (wheel[(int) (due % wheel.length)].link(t, due)) {
+                return t;
+            }
+        }
+    }
+
+    /**
+     * Number of timeouts scheduled that have neither fired nor been cancelled.
+     */
+    public int pending(){
+        return pending.get();
+    }
+
+    /**
+     * Number of timeouts that have fired since the wheel started.
+     */
+    public long timedOut(){
+        return timedOut.get();
+    }
+
+    private void run(){
+        while (true) {
+            long next = tick + 1;
+            long sleep = startTime + next * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            tick = next;
+            Timeout t = wheel[(int) (next % wheel.length)].expire(next);
+            while (t != null) {
+                Timeout following = t.next;
+                t.next = null;
+                timedOut.incrementAndGet();
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    logger.info("Timeout task failed: " + e);
+                }
+                t = following;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+/**
+ * Starts a Controller and N Dstores in this JVM on loopback, each Dstore in its own temporary folder, and drives
+ * them with a mix of STORE, LOAD, REMOVE and LIST from a number of client threads speaking the text protocol.
+ * Reports operations per second and latency percentiles per operation, measured as the client sees them,
+ * including the transfers to and from Dstores.
+ *
+ * Each client works on its own files: LOAD and REMOVE pick one it has stored, and fall back to a STORE while it
+ * has none. The mix gives the relative weight of each operation.
+ *
+ * Usage: java ClusterHarness [dstores] [clients] [seconds] [fileBytes] [store=W,load=W,remove=W,list=W] [cport]
+ */
+public class ClusterHarness {
+    private static final int REP_FACTOR = 3;
+    private static final int TIMEOUT = 5000;
+    private static final String[] OPERATIONS = {"STORE", "LOAD", "REMOVE", "LIST"};
+
+    public static void main(String[] args) throws Exception {
+        int dstores = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int fileBytes = args.length > 3 ? Integer.parseInt(args[3]) : 16 * 1024;
+        int[] mix = mix(args.length > 4 ? args[4] : "store=20,load=60,remove=10,list=10");
+        int cport = args.length > 5 ? Integer.parseInt(args[5]) : 14000;
+
+        Logger.getLogger("").setLevel(Level.WARNING);
+        for (var handler : Logger.getLogger("").getHandlers()) {
+            handler.setLevel(Level.WARNING);
+        }
+        Path root = Files.createTempDirectory("cluster");
+        new Controller(cport, Math.min(REP_FACTOR, dstores), TIMEOUT, 3600).start();
+        for (int i = 1; i <= dstores; i++) {
+            Path folder = Files.createDirectory(root.resolve("dstore" + i));
+            new Dstore(cport + i, cport, TIMEOUT, folder.toString()).start();
+        }
+        awaitDstores(dstores);
+
+        Map<String, Histogram> latencies = new LinkedHashMap<>();
+        for (String operation : OPERATIONS) {
+            latencies.put(operation, new Histogram());
+        }
+        AtomicLong errors = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Client client = new Client(cport, "c" + c + "-", fileBytes);
+            threads.add(Thread.ofPlatform().start(() -> client.run(end, mix, latencies, errors)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long total = 0;
+        for (Map.Entry<String, Histogram> latency : latencies.entrySet()) {
+            Histogram histogram = latency.getValue();
+            total += histogram.count();
+            System.out.printf("%-7s %10.0f ops/s  p50 %6dus  p99 %6dus  p999 %6dus%n", latency.getKey(),
+                    histogram.count() / (double) seconds, histogram.percentile(0.5), histogram.percentile(0.99), histogram.percentile(0.999));
+        }
+        System.out.printf("total   %10.0f ops/s  %d errors%n", total / (double) seconds, errors.get());
+
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+        System.exit(0); //the Controller and Dstores have no shutdown
+    }
+
+    private static int[] mix(String spec){
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : spec.split(",")) {
+            String[] pair = part.split("=");
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (OPERATIONS[i].equalsIgnoreCase(pair[0])) {
+                    weights[i] = Integer.parseInt(pair[1]);
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Waits until every Dstore has joined, going by the Controller's dstores gauge.
+     */
+    private static void awaitDstores(int dstores) throws Exception {
+        MetricsMXBean metrics = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName("Controller:type=Metrics"), MetricsMXBean.class);
+        while (true) {
+            try {
+                if (metrics.getGauges().getOrDefault("dstores", 0L) >= dstores) {
+                    return;
+                }
+            } catch (RuntimeException notYetRegistered) {
+
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static class Client {
+        private final int cport;
+        private final String prefix;
+        private final byte[] data;
+        private final List<String> files;
+        private int next;
+        private PrintWriter writer;
+        private BufferedReader reader;
+
+        Client(int cport, String prefix, int fileBytes){
+            this.cport = cport;
+            this.prefix = prefix;
+            this.data = new byte[fileBytes];
+            this.files = new ArrayList<>();
+        }
+
+        void run(long end, int[] mix, Map<String, Histogram> latencies, AtomicLong errors){
+            int sum = 0;
+            for (int weight : mix) {
+                sum += weight;
+            }
+            try (Socket controller = new Socket("localhost", cport)) {
+                writer = new PrintWriter(controller.getOutputStream());
+                reader = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+                while (System.nanoTime() < end) {
+                    int pick = ThreadLocalRandom.current().nextInt(sum);
+                    int operation = 0;
+                    while (pick >= mix[operation]) {
+                        pick -= mix[operation++];
+                    }
+                    if (files.isEmpty() && (operation == 1 || operation == 2)) {
+                        operation = 0;
+                    }
+                    long start = System.nanoTime();
+                    boolean ok = switch (operation) {
+                        case 0 -> store();
+                        case 1 -> load();
+                        case 2 -> remove();
+                        default -> list();
+                    };
+                    if (ok) {
+                        latencies.get(OPERATIONS[operation]).record((System.nanoTime() - start) / 1000);
+                    } else {
+                        errors.incrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+        }
+
+        private String request(String line) throws IOException {
+            writer.println(line);
+            writer.flush();
+            return reader.readLine();
+        }
+
+        private boolean store() throws IOException {
+            String filename = prefix + next++;
+            String[] reply = request(Protocol.STORE_TOKEN + " " + filename + " " + data.length).split(" ");
+            if (!reply[0].equals(Protocol.STORE_TO_TOKEN)) {
+                return false;
+            }
+            for (int i = 1; i < reply.length; i++) {
+                try (Socket dstore = new Socket("localhost", Integer.parseInt(reply[i]))) {
+                    PrintWriter out = new PrintWriter(dstore.getOutputStream());
+                    out.println(Protocol.STORE_TOKEN + " " + filename + " " + data.length);
+                    out.flush();
+                    new BufferedReader(new InputStreamReader(dstore.getInputStream())).readLine();
+                    OutputStream output = dstore.getOutputStream();
+                    output.write(data);
+                    output.flush();
+                }
+            }
+            if (!Protocol.STORE_COMPLETE_TOKEN.equals(reader.readLine())) {
+                return false;
+            }
+            files.add(filename);
+            return true;
+        }
+
+        private boolean load() throws IOException {
+            String filename = files.get(ThreadLocalRandom.current().nextInt(files.size()));
+            String[] reply = request(Protocol.LOAD_TOKEN + " " + filename).split(" ");
+            if (!reply[0].equals(Protocol.LOAD_FROM_TOKEN)) {
+                return false;
+            }
+            try (Socket dstore = new Socket("localhost", Integer.parseInt(reply[1]))) {
+                PrintWriter out = new PrintWriter(dstore.getOutputStream());
+                out.println(Protocol.LOAD_DATA_TOKEN + " " + filename);
+                out.flush();
+                new DataInputStream(dstore.getInputStream()).readFully(new byte[Integer.parseInt(reply[2])]);
+            }
+            return true;
+        }
+
+        private boolean remove() throws IOException {
+            String filename = files.remove(files.size() - 1);
+            return Protocol.REMOVE_COMPLETE_TOKEN.equals(request(Protocol.REMOVE_TOKEN + " " + filename));
+        }
+
+        private boolean list() throws IOException {
+            return request(Protocol.LIST_TOKEN).startsWith(Protocol.LIST_TOKEN);
+        }
+    }
+}
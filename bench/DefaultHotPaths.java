@@ -0,0 +1,181 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.function.Function;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The default package side of jmh.HotPaths: the Controller and Dstore code the JMH benchmarks measure, and the
+ * versions it replaced, kept here to compare against.
+ */
+public class DefaultHotPaths implements jmh.HotPaths {
+
+    @Override
+    public Function<String, List<Integer>> placement(String strategy, int files, int dstores, int repFactor){
+        Map<String, List<Integer>> stored = new HashMap<>();
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < dstores; i++) {
+            ports.add(12001 + i);
+        }
+        for (int i = 0; i < files; i++) {
+            List<Integer> replicas = new ArrayList<>();
+            for (int r = 0; r < repFactor; r++) {
+                replicas.add(ports.get((i + r) % dstores));
+            }
+            stored.put("file" + i, replicas);
+        }
+        return switch (strategy) {
+            case "scan" -> filename -> scan(stored, ports, repFactor);
+            case "least-loaded" -> chooser(new LeastLoadedPlacement(), stored, ports, repFactor);
+            case "hash" -> chooser(new ConsistentHashPlacement(), stored, ports, repFactor);
+            default -> throw new IllegalArgumentException("Unknown placement " + strategy);
+        };
+    }
+
+    /**
+     * The original STORE placement: sort the Dstores by a count taken by scanning every file's replicas.
+     */
+    private static List<Integer> scan(Map<String, List<Integer>> stored, List<Integer> ports, int repFactor){
+        return ports.stream().sorted(Comparator.comparingInt(port -> {
+            int count = 0;
+            for (List<Integer> replicas : stored.values()) {
+                if (replicas.contains(port)) {
+                    count++;
+                }
+            }
+            return count;
+        })).limit(repFactor).toList();
+    }
+
+    /**
+     * Places new files one after another, reporting each choice back as FileIndex.put does.
+     */
+    private static Function<String, List<Integer>> chooser(Placement placement, Map<String, List<Integer>> stored, List<Integer> ports, int repFactor){
+        for (int port : ports) {
+            placement.join(port, 1);
+        }
+        for (List<Integer> replicas : stored.values()) {
+            for (int port : replicas) {
+                placement.replicaAdded(port);
+            }
+        }
+        return filename -> {
+            List<Integer> chosen = placement.choose(filename, repFactor);
+            for (int port : chosen) {
+                placement.replicaAdded(port);
+            }
+            return chosen;
+        };
+    }
+
+    @Override
+    public void list(String framing, SortedSet<String> names, Blackhole sink){
+        OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b){
+                sink.consume(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length){
+                sink.consume(bytes);
+            }
+        };
+        ClientWriter writer = switch (framing) {
+            case "text" -> new ClientWriter.Text(output);
+            case "binary" -> new ClientWriter.Binary(output);
+            default -> throw new IllegalArgumentException("Unknown framing " + framing);
+        };
+        writer.list(names);
+    }
+
+    @Override
+    public byte[] encode(String framing, int messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (framing.equals("text")) {
+            PrintWriter writer = new PrintWriter(bytes);
+            for (int i = 0; i < messages; i++) {
+                writer.println(Protocol.STORE_TOKEN + " file" + i + " " + (1000L + i));
+                writer.println(Protocol.LOAD_TOKEN + " file" + i);
+            }
+            writer.flush();
+        } else {
+            Frame out = new Frame();
+            for (int i = 0; i < messages; i++) {
+                out.begin(BinaryProtocol.STORE).putString("file" + i).putLong(1000L + i).writeTo(bytes);
+                out.begin(BinaryProtocol.LOAD).putString("file" + i).writeTo(bytes);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Text lines go through ClientRequest.parse, as in Controller.handleClientMessage; frames are read field by field
+     * as in Controller.handleClientFrame.
+     */
+    @Override
+    public long parse(String framing, byte[] messages) throws IOException {
+        long check = 0;
+        if (framing.equals("text")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(messages)));
+            String input;
+            while ((input = reader.readLine()) != null) {
+                ClientRequest request = ClientRequest.parse(input);
+                switch (request.token) {
+                    case Protocol.STORE_TOKEN -> check += request.names.get(0).length() + request.numbers[0];
+                    case Protocol.LOAD_TOKEN -> check += request.names.get(0).length();
+                    default -> throw new IllegalStateException(input);
+                }
+            }
+        } else {
+            BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(messages));
+            Frame frame = new Frame();
+            while (frame.read(in)) {
+                switch (frame.opcode) {
+                    case BinaryProtocol.STORE -> check += frame.nextString().length() + frame.nextLong();
+                    case BinaryProtocol.LOAD -> check += frame.nextString().length();
+                    default -> throw new IllegalStateException("opcode " + frame.opcode);
+                }
+            }
+        }
+        return check;
+    }
+
+    @Override
+    public Sender loadData(String sender){
+        return switch (sender) {
+            case "loop" -> DefaultHotPaths::legacyLoop;
+            case "transfer" -> FileTransfer::send;
+            default -> throw new IllegalArgumentException("Unknown sender " + sender);
+        };
+    }
+
+    /**
+     * The copy loop Dstore.handleLOAD_DATA used before FileTransfer.
+     */
+    private static void legacyLoop(Path file, Socket socket) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        try (FileInputStream fileInputStream = new FileInputStream(file.toFile())) {
+            byte[] bytes = new byte[1024];
+            int temp;
+            while ((temp = fileInputStream.read(bytes)) != -1){
+                output.write(bytes,0,temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,723 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a running Controller and its Dstores with many concurrent clients speaking the coursework text protocol:
+ * STORE with its STORE_TO uploads, LOAD with LOAD_FROM downloads and RELOAD when a Dstore fails to serve, REMOVE
+ * and LIST. It then reports throughput and latency per operation, so two builds can be compared under the same
+ * workload.
+ *
+ * Files are named k0 to k(keys-1) and picked with Zipfian popularity, so a few keys are hot. Each STORE picks its
+ * size from the size distribution. Missing or existing files are normal outcomes with a shared key space and are
+ * reported as such, not as errors.
+ *
+ * Closed loop (rate=0): every client starts its next operation as soon as the last one finishes. Open loop
+ * (rate=R): operations arrive as a Poisson process at R per second whatever the cluster's speed, and latency runs
+ * from when an operation was due, so time spent queued behind a slow cluster is counted.
+ *
+ * Erasure coding: ec=K+M stores every file with STORE_EC as K data and M parity shards, encoded here, and loads
+ * fetch K shards from different Dstores at once, decoding from parity when a data shard is unavailable.
+ *
+ * Chunked files: when the Controller splits a large file (controller.chunk.bytes), its chunks are uploaded to their
+ * Dstores at once, and loads fetch every chunk at once, RELOADing for a new map when some chunks fail and fetching
+ * just those again. range=N makes each load of a chunked file read N bytes at a random offset, fetching only the
+ * chunks that cover them.
+ *
+ * Faults: kill=PID@SECONDS[,PID@SECONDS...] force-kills those processes, e.g. Dstores, that far into the run. Use
+ * timeline=true to see throughput and errors second by second around them.
+ *
+ * Usage: java LoadGenerator [cport=12000] [clients=32] [seconds=30] [keys=1000] [zipf=0.99]
+ *            [mix=load=70,store=20,remove=5,list=5] [sizes=fixed:16384|uniform:MIN:MAX|lognormal:MEDIAN:SIGMA]
+ *            [rate=0] [preload=true] [timeout=5000] [kill=PID@SECONDS] [timeline=false] [ec=K+M] [range=0]
+ */
+public class LoadGenerator {
+    private static final String[] OPERATIONS = {"STORE", "LOAD", "REMOVE", "LIST"};
+    private static final int STORE = 0;
+    private static final int LOAD = 1;
+    private static final int REMOVE = 2;
+    private static final String OK = "ok";
+
+    private final int cport;
+    private final int timeout;
+    private final int keys;
+    private final double[] popularity; //cumulative probability of each key by rank
+    private final int[] mix;
+    private final String sizes;
+    private final byte[] data;
+    private final int dataShards; //0 unless files are erasure-coded
+    private final int parityShards;
+    private final long range; //bytes read by each load of a chunked file, 0 for the whole file
+    private final Histogram[] latencies;
+    private final Map<String, LongAdder> outcomes; //"OPERATION outcome" -> count
+    private final AtomicLongArray completed; //per second of the run
+    private final AtomicLongArray failed;
+    private volatile long started;
+
+    private LoadGenerator(Map<String, String> options){
+        this.cport = Integer.parseInt(options.get("cport"));
+        this.timeout = Integer.parseInt(options.get("timeout"));
+        this.keys = Integer.parseInt(options.get("keys"));
+        this.popularity = zipf(keys, Double.parseDouble(options.get("zipf")));
+        this.mix = mix(options.get("mix"));
+        this.sizes = options.get("sizes");
+        long largest = 0;
+        Random random = new Random(1);
+        for (int i = 0; i < 10_000; i++) {
+            largest = Math.max(largest, size(random));
+        }
+        this.data = new byte[(int) Math.max(1024, Math.min(64L << 20, largest * 2))]; //larger files reuse it
+        new Random(2).nextBytes(data);
+        String[] ec = options.getOrDefault("ec", "0+0").split("\\+");
+        this.dataShards = Integer.parseInt(ec[0]);
+        this.parityShards = Integer.parseInt(ec[1]);
+        this.range = Long.parseLong(options.getOrDefault("range", "0"));
+        this.latencies = new Histogram[OPERATIONS.length];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new Histogram();
+        }
+        this.outcomes = new ConcurrentHashMap<>();
+        int seconds = Integer.parseInt(options.get("seconds"));
+        this.completed = new AtomicLongArray(seconds + 1);
+        this.failed = new AtomicLongArray(seconds + 1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(Map.of("cport", "12000", "clients", "32", "seconds", "30", "keys", "1000",
+                "zipf", "0.99", "mix", "load=70,store=20,remove=5,list=5", "sizes", "fixed:16384", "rate", "0",
+                "preload", "true", "timeout", "5000"));
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                System.out.println("Expected key=value, got " + arg);
+                return;
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        int clients = Integer.parseInt(options.get("clients"));
+        int seconds = Integer.parseInt(options.get("seconds"));
+        double rate = Double.parseDouble(options.get("rate"));
+
+        if (Boolean.parseBoolean(options.get("preload"))) {
+            generator.preload(clients);
+        }
+        generator.started = System.nanoTime();
+        if (options.containsKey("kill")) {
+            generator.scheduleKills(options.get("kill"));
+        }
+        long unsent = rate > 0 ? generator.openLoop(clients, seconds, rate) : generator.closedLoop(clients, seconds);
+        generator.report(seconds, unsent, Boolean.parseBoolean(options.get("timeline")));
+    }
+
+    /**
+     * Cumulative Zipf probabilities with exponent s over n ranks; s = 0 is uniform.
+     */
+    private static double[] zipf(int n, double s){
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, s);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private String key(Random random){
+        int rank = Arrays.binarySearch(popularity, random.nextDouble());
+        return "k" + Math.min(rank < 0 ? -rank - 1 : rank, keys - 1);
+    }
+
+    private long size(Random random){
+        String[] spec = sizes.split(":");
+        return switch (spec[0]) {
+            case "fixed" -> Long.parseLong(spec[1]);
+            case "uniform" -> Long.parseLong(spec[1]) + (long) (random.nextDouble() * (Long.parseLong(spec[2]) - Long.parseLong(spec[1]) + 1));
+            case "lognormal" -> Math.max(1, Math.round(Long.parseLong(spec[1]) * Math.exp(Double.parseDouble(spec[2]) * random.nextGaussian())));
+            default -> throw new IllegalArgumentException("Unknown size distribution: " + sizes);
+        };
+    }
+
+    private static int[] mix(String spec){
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : spec.split(",")) {
+            String[] pair = part.split("=");
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (OPERATIONS[i].equalsIgnoreCase(pair[0])) {
+                    weights[i] = Integer.parseInt(pair[1]);
+                }
+            }
+        }
+        return weights;
+    }
+
+    private int operation(Random random){
+        int sum = 0;
+        for (int weight : mix) {
+            sum += weight;
+        }
+        int pick = random.nextInt(sum);
+        int operation = 0;
+        while (pick >= mix[operation]) {
+            pick -= mix[operation++];
+        }
+        return operation;
+    }
+
+    /**
+     * Stores every key once before the measured run, so LOADs find files from the start.
+     */
+    private void preload(int clients) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int first = c;
+            threads.add(Thread.ofVirtual().start(() -> {
+                Client client = new Client();
+                Random random = ThreadLocalRandom.current();
+                for (int k = first; k < keys; k += clients) {
+                    client.store("k" + k, size(random));
+                }
+                client.close();
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println("Preloaded " + keys + " keys");
+    }
+
+    private void scheduleKills(String spec){
+        for (String kill : spec.split(",")) {
+            String[] parts = kill.split("@");
+            long pid = Long.parseLong(parts[0]);
+            double at = Double.parseDouble(parts[1]);
+            Thread.ofVirtual().start(() -> {
+                LockSupport.parkNanos((long) (at * 1e9) - (System.nanoTime() - started));
+                boolean killed = ProcessHandle.of(pid).map(ProcessHandle::destroyForcibly).orElse(false);
+                System.out.printf("%.1fs: %s process %d%n", (System.nanoTime() - started) / 1e9, killed ? "killed" : "could not kill", pid);
+            });
+        }
+    }
+
+    private long closedLoop(int clients, int seconds) throws InterruptedException {
+        long end = started + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                Client client = new Client();
+                Random random = ThreadLocalRandom.current();
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    perform(client, random, now);
+                }
+                client.close();
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return 0;
+    }
+
+    /**
+     * Issues operations at rate per second with exponentially distributed gaps. Returns how many were due but not
+     * started by the end of the run because every client was busy.
+     */
+    private long openLoop(int clients, int seconds, double rate) throws InterruptedException {
+        long end = started + TimeUnit.SECONDS.toNanos(seconds);
+        LinkedBlockingQueue<Long> due = new LinkedBlockingQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                Client client = new Client();
+                Random random = ThreadLocalRandom.current();
+                try {
+                    while (true) {
+                        Long intended = due.poll(100, TimeUnit.MILLISECONDS);
+                        if (intended == null) {
+                            if (System.nanoTime() >= end) {
+                                break;
+                            }
+                            continue;
+                        }
+                        if (intended >= end) {
+                            break;
+                        }
+                        perform(client, random, intended);
+                    }
+                } catch (InterruptedException ignored) {
+
+                }
+                client.close();
+            }));
+        }
+        Random random = new Random();
+        long next = started;
+        while (true) {
+            next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+            if (next >= end) {
+                break;
+            }
+            LockSupport.parkNanos(next - System.nanoTime());
+            due.add(next);
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(1) + timeout);
+        }
+        return due.size();
+    }
+
+    /**
+     * Runs one operation and records its latency from intended, the time it was due to start.
+     */
+    private void perform(Client client, Random random, long intended){
+        int operation = operation(random);
+        String key = key(random);
+        String outcome = switch (operation) {
+            case STORE -> client.store(key, size(random));
+            case LOAD -> client.load(key);
+            case REMOVE -> client.remove(key);
+            default -> client.list();
+        };
+        long now = System.nanoTime();
+        latencies[operation].record((now - intended) / 1000);
+        outcomes.computeIfAbsent(OPERATIONS[operation] + " " + outcome, k -> new LongAdder()).increment();
+        int second = (int) Math.min((now - started) / 1_000_000_000L, completed.length() - 1);
+        boolean error = !outcome.equals(OK) && !outcome.equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)
+                && !outcome.equals(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+        (error ? failed : completed).incrementAndGet(second);
+    }
+
+    private void report(int seconds, long unsent, boolean timeline){
+        System.out.printf("%-7s %9s %10s %9s %9s %9s %9s %9s%n", "op", "count", "ops/s", "p50 us", "p90 us", "p99 us", "p999 us", "max us");
+        long total = 0;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            Histogram histogram = latencies[i];
+            total += histogram.count();
+            System.out.printf("%-7s %9d %10.1f %9d %9d %9d %9d %9d%n", OPERATIONS[i], histogram.count(), histogram.count() / (double) seconds,
+                    histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99), histogram.percentile(0.999), histogram.percentile(1.0));
+        }
+        System.out.printf("%-7s %9d %10.1f%n", "total", total, total / (double) seconds);
+        if (unsent > 0) {
+            System.out.println("Not started by the end of the run: " + unsent);
+        }
+        System.out.println("Outcomes:");
+        Map<String, Long> sorted = new TreeMap<>();
+        outcomes.forEach((outcome, count) -> sorted.put(outcome, count.sum()));
+        sorted.forEach((outcome, count) -> System.out.println("  " + outcome + " " + count));
+        if (timeline) {
+            System.out.println("Second  completed  errors");
+            for (int s = 0; s < completed.length(); s++) {
+                System.out.printf("%6d %10d %7d%n", s, completed.get(s), failed.get(s));
+            }
+        }
+    }
+
+    /**
+     * One client connection to the Controller, reconnected after any failure so a late reply cannot be taken
+     * for the answer to a later request.
+     */
+    private class Client {
+        private Socket socket;
+        private PrintWriter writer;
+        private BufferedReader reader;
+
+        private void connect() throws IOException {
+            if (socket == null) {
+                socket = new Socket("localhost", cport);
+                socket.setSoTimeout(timeout);
+                writer = new PrintWriter(socket.getOutputStream());
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            }
+        }
+
+        void close(){
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+
+                }
+                socket = null;
+            }
+        }
+
+        private String request(String line) throws IOException {
+            connect();
+            writer.println(line);
+            writer.flush();
+            String reply = reader.readLine();
+            if (reply == null) {
+                throw new IOException("Controller closed the connection");
+            }
+            return reply;
+        }
+
+        /**
+         * Drops the connection after a request failed and names the failure as an outcome.
+         */
+        private String failure(IOException e){
+            close();
+            return e instanceof SocketTimeoutException ? "timeout" : "io";
+        }
+
+        /**
+         * Each operation returns OK, the Controller's reply if it was anything else, or "timeout" or "io".
+         */
+        String store(String key, long size){
+            if (dataShards > 0) {
+                return storeShards(key, size);
+            }
+            try {
+                String[] reply = request(Protocol.STORE_TOKEN + " " + key + " " + size).split(" ");
+                if (reply[0].equals(Protocol.STORE_CHUNKS_TO_TOKEN)) {
+                    return storeChunks(key, size, reply);
+                }
+                if (!reply[0].equals(Protocol.STORE_TO_TOKEN)) {
+                    return reply[0];
+                }
+                for (int i = 1; i < reply.length; i++) {
+                    upload(Integer.parseInt(reply[i]), key, size);
+                }
+                String complete = reader.readLine();
+                return Protocol.STORE_COMPLETE_TOKEN.equals(complete) ? OK : String.valueOf(complete);
+            } catch (IOException e) {
+                return failure(e);
+            }
+        }
+
+        private void upload(int port, String key, long size){
+            try (Socket dstore = new Socket("localhost", port)) {
+                dstore.setSoTimeout(timeout);
+                PrintWriter out = new PrintWriter(dstore.getOutputStream());
+                out.println(Protocol.STORE_TOKEN + " " + key + " " + size);
+                out.flush();
+                String ack = new BufferedReader(new InputStreamReader(dstore.getInputStream())).readLine();
+                if (!Protocol.ACK_TOKEN.equals(ack)) {
+                    return; //the Controller's timeout reports the store as failed
+                }
+                OutputStream output = dstore.getOutputStream();
+                int offset = ThreadLocalRandom.current().nextInt(data.length / 2);
+                for (long sent = 0; sent < size; ) {
+                    int chunk = (int) Math.min(size - sent, data.length - offset);
+                    output.write(data, offset, chunk);
+                    sent += chunk;
+                    offset = 0;
+                }
+                output.flush();
+            } catch (IOException e) {
+                //a Dstore that cannot take the file is the Controller's to time out, as for any client
+            }
+        }
+
+        /**
+         * STORE_CHUNKS_TO: uploads every chunk to each of its Dstores at once.
+         */
+        private String storeChunks(String key, long size, String[] reply) throws IOException {
+            long chunkSize = Long.parseLong(reply[1]);
+            List<List<Integer>> ports = chunkPorts(reply, 2);
+            List<Thread> uploads = new ArrayList<>();
+            for (int i = 0; i < ports.size(); i++) {
+                String chunk = FileIndex.chunkName(key, i);
+                long length = Math.min(chunkSize, size - i * chunkSize);
+                for (int port : ports.get(i)) {
+                    uploads.add(Thread.ofVirtual().start(() -> upload(port, chunk, length)));
+                }
+            }
+            if (!join(uploads)) {
+                return "interrupted";
+            }
+            String complete = reader.readLine();
+            return Protocol.STORE_COMPLETE_TOKEN.equals(complete) ? OK : String.valueOf(complete);
+        }
+
+        /**
+         * The port lists of STORE_CHUNKS_TO or LOAD_CHUNKS_FROM, whose chunk count is at reply[count].
+         */
+        private static List<List<Integer>> chunkPorts(String[] reply, int count){
+            List<List<Integer>> ports = new ArrayList<>();
+            int field = count + 1;
+            for (int i = Integer.parseInt(reply[count]); i > 0; i--) {
+                List<Integer> chunk = new ArrayList<>();
+                for (int k = Integer.parseInt(reply[field++]); k > 0; k--) {
+                    chunk.add(Integer.parseInt(reply[field++]));
+                }
+                ports.add(chunk);
+            }
+            return ports;
+        }
+
+        private static boolean join(List<Thread> threads){
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * STORE_EC: cuts the file into data shards, encodes the parity shards and uploads shard i to the i-th Dstore.
+         */
+        private String storeShards(String key, long size){
+            try {
+                String[] reply = request(Protocol.STORE_EC_TOKEN + " " + key + " " + size + " " + dataShards + " " + parityShards).split(" ");
+                if (!reply[0].equals(Protocol.STORE_TO_TOKEN)) {
+                    return reply[0];
+                }
+                int shardSize = (int) ReedSolomon.shardSize(size, dataShards);
+                byte[][] shards = new byte[dataShards + parityShards][shardSize];
+                int offset = ThreadLocalRandom.current().nextInt(data.length / 2);
+                for (long copied = 0; copied < size; ) {
+                    int chunk = (int) Math.min(Math.min(size - copied, data.length - offset), shardSize - copied % shardSize);
+                    System.arraycopy(data, offset, shards[(int) (copied / shardSize)], (int) (copied % shardSize), chunk);
+                    copied += chunk;
+                    offset = (offset + chunk) % data.length;
+                }
+                new ReedSolomon(dataShards, parityShards).encode(shards, 0, shardSize);
+                for (int i = 1; i < reply.length; i++) {
+                    uploadShard(Integer.parseInt(reply[i]), key, shards[i - 1]);
+                }
+                String complete = reader.readLine();
+                return Protocol.STORE_COMPLETE_TOKEN.equals(complete) ? OK : String.valueOf(complete);
+            } catch (IOException e) {
+                return failure(e);
+            }
+        }
+
+        private void uploadShard(int port, String key, byte[] shard){
+            try (Socket dstore = new Socket("localhost", port)) {
+                dstore.setSoTimeout(timeout);
+                PrintWriter out = new PrintWriter(dstore.getOutputStream());
+                out.println(Protocol.STORE_TOKEN + " " + key + " " + shard.length);
+                out.flush();
+                String ack = new BufferedReader(new InputStreamReader(dstore.getInputStream())).readLine();
+                if (Protocol.ACK_TOKEN.equals(ack)) {
+                    dstore.getOutputStream().write(shard);
+                    dstore.getOutputStream().flush();
+                }
+            } catch (IOException e) {
+                //left to the Controller's timeout, as in upload
+            }
+        }
+
+        /**
+         * LOADs key, RELOADing from the next Dstore whenever one fails to serve it.
+         */
+        String load(String key){
+            try {
+                String[] reply = request(Protocol.LOAD_TOKEN + " " + key).split(" ");
+                if (reply[0].equals(Protocol.LOAD_EC_FROM_TOKEN)) {
+                    return loadShards(key, Long.parseLong(reply[1]), Integer.parseInt(reply[2]), Arrays.copyOfRange(reply, 3, reply.length));
+                }
+                if (reply[0].equals(Protocol.LOAD_CHUNKS_FROM_TOKEN)) {
+                    return loadChunks(key, reply);
+                }
+                while (reply[0].equals(Protocol.LOAD_FROM_TOKEN)) {
+                    if (download(Integer.parseInt(reply[1]), key, Long.parseLong(reply[2]))) {
+                        return OK;
+                    }
+                    outcomes.computeIfAbsent("LOAD reloads", k -> new LongAdder()).increment();
+                    reply = request(Protocol.RELOAD_TOKEN + " " + key).split(" ");
+                }
+                return reply[0];
+            } catch (IOException e) {
+                return failure(e);
+            }
+        }
+
+        /**
+         * Fetches k shards from their Dstores at once, moving on to the remaining shards for any that fail, and
+         * decodes the data from parity if a data shard was not among them.
+         */
+        private String loadShards(String key, long size, int k, String[] ports){
+            int shardSize = (int) ReedSolomon.shardSize(size, k);
+            byte[][] shards = new byte[ports.length][];
+            boolean[] present = new boolean[ports.length];
+            int next = 0;
+            int have = 0;
+            while (have < k) {
+                List<Integer> batch = new ArrayList<>();
+                for (; next < ports.length && batch.size() < k - have; next++) {
+                    if (!ports[next].equals("0")) {
+                        batch.add(next);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return "shards";
+                }
+                List<Thread> fetches = new ArrayList<>();
+                for (int i : batch) {
+                    shards[i] = new byte[shardSize];
+                    int port = Integer.parseInt(ports[i]);
+                    fetches.add(Thread.ofVirtual().start(() -> present[i] = download(port, key, shards[i])));
+                }
+                if (!join(fetches)) {
+                    return "interrupted";
+                }
+                for (int i : batch) {
+                    if (present[i]) {
+                        have++;
+                    } else {
+                        shards[i] = null;
+                    }
+                }
+            }
+            boolean decode = false;
+            for (int i = 0; i < k; i++) {
+                if (!present[i]) {
+                    shards[i] = new byte[shardSize];
+                    decode = true;
+                }
+            }
+            if (decode) {
+                new ReedSolomon(k, ports.length - k).reconstruct(shards, present, 0, shardSize);
+                outcomes.computeIfAbsent("LOAD decoded", x -> new LongAdder()).increment();
+            }
+            return OK;
+        }
+
+        /**
+         * Fetches the chunks covering the bytes to be read from their Dstores at once, each from the next of its
+         * Dstores if one fails. Chunks still missing are fetched again from the map a RELOAD returns, until every
+         * one is in or a RELOAD brings none.
+         */
+        private String loadChunks(String key, String[] reply) throws IOException {
+            long size = Long.parseLong(reply[1]);
+            long chunkSize = Long.parseLong(reply[2]);
+            long from = range > 0 && range < size ? ThreadLocalRandom.current().nextLong(size - range + 1) : 0;
+            long to = range > 0 && range < size ? from + range : size;
+            int chunks = Integer.parseInt(reply[3]);
+            boolean[] fetched = new boolean[chunks];
+            for (int i = 0; i < chunks; i++) {
+                fetched[i] = (i + 1) * chunkSize <= from || i * chunkSize >= to; //not needed for the range
+            }
+            int missing = chunks + 1; //more than can be left, so the first failures are always RELOADed
+            while (true) {
+                List<List<Integer>> ports = chunkPorts(reply, 3);
+                List<Thread> fetches = new ArrayList<>();
+                for (int i = 0; i < chunks; i++) {
+                    if (fetched[i]) {
+                        continue;
+                    }
+                    int chunk = i;
+                    long start = Math.max(from, i * chunkSize);
+                    long length = Math.min(to, (i + 1) * chunkSize) - start;
+                    String request = Protocol.LOAD_DATA_TOKEN + " " + FileIndex.chunkName(key, i) + " " + (start - i * chunkSize) + " " + length;
+                    fetches.add(Thread.ofVirtual().start(() -> {
+                        for (int port : ports.get(chunk)) {
+                            if (receive(port, request, length)) {
+                                fetched[chunk] = true;
+                                return;
+                            }
+                        }
+                    }));
+                }
+                if (!join(fetches)) {
+                    return "interrupted";
+                }
+                int left = 0;
+                for (boolean done : fetched) {
+                    left += done ? 0 : 1;
+                }
+                if (left == 0) {
+                    return OK;
+                }
+                if (left == missing) {
+                    return "chunks";
+                }
+                missing = left;
+                outcomes.computeIfAbsent("LOAD chunk reloads", k -> new LongAdder()).increment();
+                reply = request(Protocol.RELOAD_TOKEN + " " + key).split(" ");
+                if (!reply[0].equals(Protocol.LOAD_CHUNKS_FROM_TOKEN)) {
+                    return reply[0];
+                }
+                if (Long.parseLong(reply[1]) != size || Long.parseLong(reply[2]) != chunkSize) {
+                    return "replaced"; //removed and stored again since the LOAD
+                }
+            }
+        }
+
+        private boolean download(int port, String key, byte[] into){
+            try (Socket dstore = new Socket("localhost", port)) {
+                dstore.setSoTimeout(timeout);
+                PrintWriter out = new PrintWriter(dstore.getOutputStream());
+                out.println(Protocol.LOAD_DATA_TOKEN + " " + key);
+                out.flush();
+                new DataInputStream(dstore.getInputStream()).readFully(into);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private boolean download(int port, String key, long size){
+            return receive(port, Protocol.LOAD_DATA_TOKEN + " " + key, size);
+        }
+
+        /**
+         * Sends a LOAD_DATA request and reads the size bytes it answers with.
+         */
+        private boolean receive(int port, String request, long size){
+            try (Socket dstore = new Socket("localhost", port)) {
+                dstore.setSoTimeout(timeout);
+                PrintWriter out = new PrintWriter(dstore.getOutputStream());
+                out.println(request);
+                out.flush();
+                DataInputStream in = new DataInputStream(dstore.getInputStream());
+                byte[] buffer = new byte[64 * 1024];
+                for (long read = 0; read < size; ) {
+                    int chunk = (int) Math.min(buffer.length, size - read);
+                    in.readFully(buffer, 0, chunk);
+                    read += chunk;
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        String remove(String key){
+            try {
+                String reply = request(Protocol.REMOVE_TOKEN + " " + key);
+                return reply.equals(Protocol.REMOVE_COMPLETE_TOKEN) ? OK : reply;
+            } catch (IOException e) {
+                return failure(e);
+            }
+        }
+
+        String list(){
+            try {
+                String reply = request(Protocol.LIST_TOKEN);
+                return reply.equals(Protocol.LIST_TOKEN) || reply.startsWith(Protocol.LIST_TOKEN + " ") ? OK : reply;
+            } catch (IOException e) {
+                return failure(e);
+            }
+        }
+    }
+}
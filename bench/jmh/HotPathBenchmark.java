@@ -0,0 +1,88 @@
+package jmh;
+
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the Controller's per-request hot paths: choosing Dstores for a STORE, with the index already holding a
+ * number of files, and building a LIST reply of every stored name.
+ *
+ * Placement is measured with the scan of every file's replicas the Controller originally did per Dstore, and with
+ * each Placement strategy. Each call places a new file and reports the choice back, so the load keeps growing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+
+    @State(Scope.Thread)
+    public static class Placements {
+
+        @Param({"scan", "least-loaded", "hash"})
+        String strategy;
+
+        @Param({"10000"})
+        int files;
+
+        @Param({"10"})
+        int dstores;
+
+        Function<String, List<Integer>> choose;
+        int next;
+
+        @Setup
+        public void setup(){
+            choose = HotPaths.load().placement(strategy, files, dstores, 3);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Listing {
+
+        @Param({"text", "binary"})
+        String framing;
+
+        @Param({"10000"})
+        int files;
+
+        HotPaths hotPaths;
+        SortedSet<String> names;
+
+        @Setup
+        public void setup(){
+            hotPaths = HotPaths.load();
+            names = new TreeSet<>();
+            for (int i = 0; i < files; i++) {
+                names.add("file" + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Integer> placement(Placements state){
+        return state.choose.apply("new" + state.next++);
+    }
+
+    @Benchmark
+    public void list(Listing state, Blackhole sink){
+        state.hotPaths.list(state.framing, state.names, sink);
+    }
+}
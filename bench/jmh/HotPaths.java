@@ -0,0 +1,57 @@
+package jmh;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.function.Function;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The hot paths the benchmarks in this package measure. The Controller and Dstore classes live in the default
+ * package, which a named package cannot import, and JMH will not generate benchmarks in the default package. So
+ * DefaultHotPaths, in the default package, implements this interface, and the benchmarks load it by name once in
+ * their setup. Measured calls then go through this interface rather than reflection.
+ */
+public interface HotPaths {
+
+    interface Sender {
+        void send(Path file, Socket socket) throws IOException;
+    }
+
+    static HotPaths load(){
+        try {
+            return (HotPaths) Class.forName("DefaultHotPaths").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("DefaultHotPaths is not on the class path", e);
+        }
+    }
+
+    /**
+     * Returns a function choosing replicas for a new file, with the index already holding files spread evenly over
+     * dstores. The strategy is scan, the original count of every file's replicas, least-loaded or hash.
+     */
+    Function<String, List<Integer>> placement(String strategy, int files, int dstores, int repFactor);
+
+    /**
+     * Writes a LIST reply of the names with the text or binary writer, to a stream that hands its bytes to sink.
+     */
+    void list(String framing, SortedSet<String> names, Blackhole sink);
+
+    /**
+     * Encodes the given number of STORE and LOAD requests, each, in the text or binary framing.
+     */
+    byte[] encode(String framing, int messages) throws IOException;
+
+    /**
+     * Decodes messages encoded by encode with the Controller's own parsing, returning a checksum of their fields.
+     */
+    long parse(String framing, byte[] messages) throws IOException;
+
+    /**
+     * Returns a way of serving LOAD_DATA: loop, the original 1 KB read/write loop, or transfer, FileTransfer.send.
+     */
+    Sender loadData(String sender);
+}
@@ -0,0 +1,51 @@
+package jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares parsing the text protocol with the binary framing, in messages per second. A batch of STORE and LOAD
+ * requests is encoded once, then each call decodes it: the text side with readLine and ClientRequest.parse, the
+ * binary side with a reused Frame, as the Controller does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    @Param({"text", "binary"})
+    String framing;
+
+    HotPaths hotPaths;
+    byte[] messages;
+
+    @Setup
+    public void setup() throws IOException {
+        hotPaths = HotPaths.load();
+        messages = hotPaths.encode(framing, MESSAGES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * MESSAGES)
+    public long parse() throws IOException {
+        return hotPaths.parse(framing, messages);
+    }
+}
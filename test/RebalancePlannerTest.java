@@ -0,0 +1,252 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the plans RebalancePlanner makes by running them against the holdings they were made from, as the Dstores
+ * would: every copy must come from a Dstore that holds the file before the plan runs, and deletions happen last.
+ */
+class RebalancePlannerTest {
+    private static final int REP_FACTOR = 3;
+
+    @Test
+    void planRestoresReplicaCount(){
+        Random random = new Random(1);
+        List<Integer> ports = ports(6);
+        Set<String> stored = names("file", 60);
+        Map<Integer, Set<String>> holdings = empty(ports);
+        for (String file : stored) {
+            //between one and five replicas, so some files are short and some have too many
+            int replicas = 1 + random.nextInt(5);
+            List<Integer> shuffled = new ArrayList<>(ports);
+            Collections.shuffle(shuffled, random);
+            for (int i = 0; i < replicas; i++) {
+                holdings.get(shuffled.get(i)).add(file);
+            }
+        }
+        holdings.get(ports.get(0)).add("stale");
+        holdings.get(ports.get(1)).add("storing");
+
+        Map<Integer, Set<String>> after = run(holdings, RebalancePlanner.plan(holdings, Map.of(), stored, Set.of("storing"), REP_FACTOR));
+
+        for (String file : stored) {
+            assertEquals(REP_FACTOR, holdersOf(after, file).size(), file);
+        }
+        assertTrue(holdersOf(after, "stale").isEmpty());
+        assertEquals(Set.of(ports.get(1)), holdersOf(after, "storing"));
+    }
+
+    @Test
+    void planKeepsEachDstoreWithinItsWeightedBounds(){
+        List<Integer> ports = ports(5);
+        Map<Integer, Integer> weights = Map.of(ports.get(0), 1, ports.get(1), 2, ports.get(2), 1, ports.get(3), 2, ports.get(4), 1);
+        Set<String> stored = names("file", 50);
+        Map<Integer, Set<String>> holdings = empty(ports);
+        //everything crowded onto the first three Dstores; no weighted share exceeds one copy of each file
+        for (String file : stored) {
+            for (int i = 0; i < REP_FACTOR; i++) {
+                holdings.get(ports.get(i)).add(file);
+            }
+        }
+
+        Map<Integer, Set<String>> after = run(holdings, RebalancePlanner.plan(holdings, weights, stored, Set.of(), REP_FACTOR));
+
+        long total = (long) stored.size() * REP_FACTOR;
+        long totalWeight = weights.values().stream().mapToLong(Integer::longValue).sum();
+        for (int port : ports) {
+            double share = (double) total * weights.get(port) / totalWeight;
+            int held = after.get(port).size();
+            assertTrue(held >= Math.floor(share) && held <= Math.ceil(share), port + " holds " + held + " for a share of " + share);
+        }
+        for (String file : stored) {
+            assertEquals(REP_FACTOR, holdersOf(after, file).size(), file);
+        }
+    }
+
+    @Test
+    void planLeavesBalancedHoldingsAlone(){
+        List<Integer> ports = ports(4);
+        Set<String> stored = names("file", 8);
+        Map<Integer, Set<String>> holdings = empty(ports);
+        int i = 0;
+        for (String file : stored) {
+            for (int r = 0; r < REP_FACTOR; r++) {
+                holdings.get(ports.get((i + r) % ports.size())).add(file);
+            }
+            i++;
+        }
+
+        assertTrue(RebalancePlanner.plan(holdings, Map.of(), stored, Set.of(), REP_FACTOR).isEmpty());
+    }
+
+    @Test
+    void toOwnersPutsFilesOnTheirRingOwners(){
+        List<Integer> ports = ports(5);
+        ConsistentHashPlacement ring = ring(ports);
+        Set<String> stored = names("file", 40);
+        Map<Integer, Set<String>> holdings = empty(ports);
+        int i = 0;
+        for (String file : stored) {
+            //placed by some other strategy, e.g. before the ring was selected
+            for (int r = 0; r < REP_FACTOR; r++) {
+                holdings.get(ports.get((i + r) % ports.size())).add(file);
+            }
+            i++;
+        }
+
+        Map<Integer, Set<String>> after = run(holdings,
+                RebalancePlanner.toOwners(holdings, stored, Set.of(), file -> ring.owners(file, REP_FACTOR, holdings.keySet())));
+
+        for (String file : stored) {
+            assertEquals(new TreeSet<>(ring.owners(file, REP_FACTOR, holdings.keySet())), holdersOf(after, file), file);
+        }
+    }
+
+    @Test
+    void joinMovesFilesOnlyToTheJoiningDstore(){
+        List<Integer> ports = ports(5);
+        ConsistentHashPlacement ring = ring(ports);
+        Set<String> stored = names("file", 100);
+        Map<Integer, Set<String>> holdings = empty(ports);
+        for (String file : stored) {
+            for (int port : ring.choose(file, REP_FACTOR)) {
+                holdings.get(port).add(file);
+            }
+        }
+        int joining = 12100;
+        ring.join(joining, 1);
+        holdings.put(joining, new HashSet<>());
+
+        RebalancePlanner.Plan plan = RebalancePlanner.toOwners(holdings, stored, Set.of(),
+                file -> ring.owners(file, REP_FACTOR, holdings.keySet()));
+
+        assertFalse(plan.sends.isEmpty());
+        for (Map<String, List<Integer>> files : plan.sends.values()) {
+            for (List<Integer> targets : files.values()) {
+                assertEquals(List.of(joining), targets);
+            }
+        }
+        assertFalse(plan.removes.containsKey(joining));
+        Map<Integer, Set<String>> after = run(holdings, plan);
+        for (int port : ports) {
+            assertTrue(holdings.get(port).containsAll(after.get(port)), port + " gained files");
+        }
+    }
+
+    @Test
+    void repairCopiesOnlyFromSurvivingReplicas(){
+        List<Integer> ports = ports(6);
+        int failed = ports.get(0);
+        List<Integer> live = ports.subList(1, ports.size());
+        Set<String> stored = names("file", 30);
+        Map<Integer, Set<String>> holdings = empty(ports);
+        int i = 0;
+        for (String file : stored) {
+            for (int r = 0; r < REP_FACTOR; r++) {
+                holdings.get(ports.get((i + r) % ports.size())).add(file);
+            }
+            i++;
+        }
+        Map<String, Set<Integer>> holders = new TreeMap<>();
+        for (String file : holdings.remove(failed)) {
+            holders.put(file, holdersOf(holdings, file));
+        }
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int port : live) {
+            counts.put(port, holdings.get(port).size());
+        }
+
+        RebalancePlanner.Plan plan = RebalancePlanner.repair(holders, counts, Map.of(), REP_FACTOR);
+
+        assertTrue(plan.removes.isEmpty());
+        for (Map.Entry<Integer, Map<String, List<Integer>>> source : plan.sends.entrySet()) {
+            for (Map.Entry<String, List<Integer>> file : source.getValue().entrySet()) {
+                assertTrue(holders.get(file.getKey()).contains(source.getKey()), file.getKey() + " sent from " + source.getKey());
+                for (int target : file.getValue()) {
+                    assertTrue(live.contains(target) && !holders.get(file.getKey()).contains(target), file.getKey() + " sent to " + target);
+                }
+            }
+        }
+        Map<Integer, Set<String>> after = run(holdings, plan);
+        for (String file : holders.keySet()) {
+            assertEquals(REP_FACTOR, holdersOf(after, file).size(), file);
+        }
+    }
+
+    /**
+     * Runs plan against holdings, checking that each copy's source held the file beforehand.
+     */
+    private static Map<Integer, Set<String>> run(Map<Integer, Set<String>> holdings, RebalancePlanner.Plan plan){
+        Map<Integer, Set<String>> after = new TreeMap<>();
+        for (Map.Entry<Integer, Set<String>> dstore : holdings.entrySet()) {
+            after.put(dstore.getKey(), new TreeSet<>(dstore.getValue()));
+        }
+        for (Map.Entry<Integer, Map<String, List<Integer>>> source : plan.sends.entrySet()) {
+            for (Map.Entry<String, List<Integer>> file : source.getValue().entrySet()) {
+                assertTrue(holdings.get(source.getKey()).contains(file.getKey()), source.getKey() + " cannot send " + file.getKey());
+                for (int target : file.getValue()) {
+                    after.get(target).add(file.getKey());
+                }
+            }
+        }
+        for (Map.Entry<Integer, Set<String>> dstore : plan.removes.entrySet()) {
+            after.get(dstore.getKey()).removeAll(dstore.getValue());
+        }
+        return after;
+    }
+
+    private static Set<Integer> holdersOf(Map<Integer, Set<String>> holdings, String file){
+        Set<Integer> holders = new TreeSet<>();
+        for (Map.Entry<Integer, Set<String>> dstore : holdings.entrySet()) {
+            if (dstore.getValue().contains(file)) {
+                holders.add(dstore.getKey());
+            }
+        }
+        return holders;
+    }
+
+    private static ConsistentHashPlacement ring(List<Integer> ports){
+        ConsistentHashPlacement ring = new ConsistentHashPlacement();
+        for (int port : ports) {
+            ring.join(port, 1);
+        }
+        return ring;
+    }
+
+    private static List<Integer> ports(int count){
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ports.add(12001 + i);
+        }
+        return ports;
+    }
+
+    private static Map<Integer, Set<String>> empty(List<Integer> ports){
+        Map<Integer, Set<String>> holdings = new TreeMap<>();
+        for (int port : ports) {
+            holdings.put(port, new HashSet<>());
+        }
+        return holdings;
+    }
+
+    private static Set<String> names(String prefix, int count){
+        Set<String> names = new TreeSet<>();
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + i);
+        }
+        return names;
+    }
+}